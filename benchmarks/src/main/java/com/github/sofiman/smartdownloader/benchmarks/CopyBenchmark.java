@@ -0,0 +1,103 @@
+package com.github.sofiman.smartdownloader.benchmarks;
+
+import com.github.sofiman.smartdownloader.utils.Streams;
+import com.github.sofiman.smartdownloader.worker.Segment;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies a body held in memory with the variants of {@link Streams#copy}, to measure the cost of the copy loop
+ * itself for every buffer size: into a stream which drops the bytes, a {@link DataOutput}, and the stream of a
+ * {@link Segment}, which the direct write mode writes into the file with.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+public class CopyBenchmark {
+
+    private static final int BODY_SIZE = 16 * 1024 * 1024;
+
+    @Param({"1024", "8192", "65536", "262144"})
+    public int bufferSize;
+
+    private byte[] body;
+    private byte[] buffer;
+    private RandomAccessFile file;
+    private Path path;
+    private FileChannel channel;
+
+    @Setup
+    public void setup() throws IOException {
+        // Always the same bytes, so every run copies the same body
+        body = new byte[BODY_SIZE];
+        new Random(42).nextBytes(body);
+        buffer = new byte[bufferSize];
+        path = Files.createTempFile("copy-benchmark", ".bin");
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Files.write(path, body);
+        file = new RandomAccessFile(path.toFile(), "r");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        file.close();
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    public long toStream() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        Streams.copy(new ByteArrayInputStream(body), out, buffer, Streams.EMPTY_AGENT);
+        return out.count;
+    }
+
+    @Benchmark
+    public long toDataOutput() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        Streams.copy(new ByteArrayInputStream(body), (DataOutput) new DataOutputStream(out), buffer, Streams.EMPTY_AGENT);
+        return out.count;
+    }
+
+    @Benchmark
+    public long toChannel() throws IOException {
+        Streams.copy(new ByteArrayInputStream(body), new Segment(0, BODY_SIZE - 1).writeTo(channel), buffer, Streams.EMPTY_AGENT);
+        return channel.size();
+    }
+
+    @Benchmark
+    public long fromFile() throws IOException {
+        file.seek(0);
+        CountingOutputStream out = new CountingOutputStream();
+        Streams.copy(file, out, buffer, Streams.EMPTY_AGENT);
+        return out.count;
+    }
+
+    /**
+     * A sink which only counts the bytes, so the copy is all that is measured.
+     */
+    static class CountingOutputStream extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.github.sofiman.smartdownloader.benchmarks;
+
+import com.github.sofiman.smartdownloader.utils.Parser;
+import com.github.sofiman.smartdownloader.utils.StringUtils;
+import com.github.sofiman.smartdownloader.worker.DownloadEntry;
+import com.github.sofiman.smartdownloader.worker.DownloadMap;
+import com.github.sofiman.smartdownloader.worker.Downloader;
+
+import java.io.*;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.util.*;
+
+/**
+ * Downloads the file of a {@link RangeServer} through the given network interfaces several times and reports the
+ * wall time, the throughput of every entry and how much of its link it used. The interfaces are meant to be
+ * loopback aliases, each with the link of its address:
+ * <pre>
+ * sudo ip addr add 127.0.0.2/8 dev lo label lo:1
+ * sudo ip addr add 127.0.0.3/8 dev lo label lo:2
+ * java -cp target/benchmarks.jar com.github.sofiman.smartdownloader.benchmarks.EndToEndBenchmark \
+ *     -s 256MiB -link 127.0.0.2=8MiB,20,2 -link 127.0.0.3=2MiB,80,10,0.05 -ni lo:1 -ni lo:2
+ * </pre>
+ */
+public class EndToEndBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Parser parser = new Parser();
+        parser.parse(args);
+        if (parser.hasOption("--help")) {
+            System.out.println("Usage: java -cp benchmarks.jar " + EndToEndBenchmark.class.getName() + " (option) [argument] ...");
+            System.out.println("\t-s, --size: Specify the size of the served file (default 67108864 bytes)");
+            System.out.println("\t-link: Specify the link of a client address as <address>=<bandwidth>[,<rtt ms>[,<jitter ms>[,<failure rate>]]], can be repeated");
+            System.out.println("\t-ni: Specify the name of one network interface (order is important)");
+            System.out.println("\t-nip: Specify how much the previous network interface must download (this option must follow the -ni option)");
+            System.out.println("\t-ns: Specify the download speed of the previous network interface (this option must follow the -ni option)");
+            System.out.println("\t-r, --runs: Specify the number of downloads (default 3)");
+            System.out.println("\t-wm, --write-mode: direct (default) or chunks");
+            System.out.println("\t-e, --engine: blocking (default) or nio");
+            System.out.println("\t-tr, --transport: http1 (default) or h2c");
+            System.out.println("\t--goaway: Make the server send GOAWAY after the given number of bytes on every HTTP/2 connection");
+            System.out.println("\t-c, --connections / -mc, --max-connections: The connections of every network interface (default 1 and 4)");
+            System.out.println("\t--seed: Specify the seed of the file and of the emulated links (default 42)");
+            return;
+        }
+
+        long size = 64L * 1024 * 1024, seed = 42, goAwayAfter = -1;
+        int runs = 3, connections = 1, maxConnections = 4;
+        Downloader.OutputMode outputMode = Downloader.OutputMode.DIRECT;
+        Downloader.Engine engine = Downloader.Engine.BLOCKING;
+        Downloader.Transport transport = Downloader.Transport.HTTP1;
+        Map<InetAddress, LinkProfile> profiles = new HashMap<>();
+        List<Setup> setups = new ArrayList<>();
+        for (Parser.Option option : parser.getOptions()) {
+            String id = option.getId();
+            String argument = option.getArgument();
+            if (id.equalsIgnoreCase("-s") || id.equalsIgnoreCase("--size")) {
+                size = byteCount(argument);
+            } else if (id.equalsIgnoreCase("-link")) {
+                int equals = argument.indexOf('=');
+                profiles.put(InetAddress.getByName(argument.substring(0, equals)),
+                        LinkProfile.parse(argument.substring(equals + 1)));
+            } else if (id.equalsIgnoreCase("-ni")) {
+                NetworkInterface ni = NetworkInterface.getByName(argument);
+                if (ni == null) {
+                    System.err.println("Unknown network interface: " + argument);
+                    return;
+                }
+                setups.add(new Setup(ni));
+            } else if (id.equalsIgnoreCase("-nip") && !setups.isEmpty()) {
+                setups.get(setups.size() - 1).repartition = Float.parseFloat(argument);
+            } else if (id.equalsIgnoreCase("-ns") && !setups.isEmpty()) {
+                setups.get(setups.size() - 1).throttle = byteCount(argument);
+            } else if (id.equalsIgnoreCase("-r") || id.equalsIgnoreCase("--runs")) {
+                runs = Integer.parseInt(argument);
+            } else if (id.equalsIgnoreCase("-wm") || id.equalsIgnoreCase("--write-mode")) {
+                outputMode = Downloader.OutputMode.valueOf(argument.toUpperCase());
+            } else if (id.equalsIgnoreCase("-e") || id.equalsIgnoreCase("--engine")) {
+                engine = Downloader.Engine.valueOf(argument.toUpperCase());
+            } else if (id.equalsIgnoreCase("-tr") || id.equalsIgnoreCase("--transport")) {
+                transport = Downloader.Transport.valueOf(argument.toUpperCase());
+            } else if (id.equalsIgnoreCase("--goaway")) {
+                goAwayAfter = byteCount(argument);
+            } else if (id.equalsIgnoreCase("-c") || id.equalsIgnoreCase("--connections")) {
+                connections = Integer.parseInt(argument);
+            } else if (id.equalsIgnoreCase("-mc") || id.equalsIgnoreCase("--max-connections")) {
+                maxConnections = Integer.parseInt(argument);
+            } else if (id.equalsIgnoreCase("--seed")) {
+                seed = Long.parseLong(argument);
+            }
+        }
+        if (setups.isEmpty()) {
+            setups.add(new Setup(NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress())));
+        }
+
+        System.out.println("<--- Links --->");
+        for (Setup setup : setups) {
+            System.out.println("* " + setup.ni.getName() + " (" + setup.address().getHostAddress() + "): " +
+                    setup.profile(profiles));
+        }
+
+        List<Long> times = new ArrayList<>();
+        try (RangeServer server = new RangeServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), size,
+                seed, profiles, LinkProfile.UNLIMITED)) {
+            server.setGoAwayAfter(goAwayAfter);
+            server.start();
+            for (int run = 1; run <= runs; run++) {
+                server.reset();
+                DownloadMap map = new DownloadMap();
+                for (Setup setup : setups) {
+                    map.with(setup.ni, setup.repartition, setup.throttle);
+                }
+                map.build();
+                File output = File.createTempFile("e2e-benchmark", ".bin");
+                output.delete();
+                try {
+                    Downloader downloader = new Downloader(server.getUrl(), output);
+                    downloader.withOutputMode(outputMode);
+                    downloader.withEngine(engine);
+                    downloader.withTransport(transport);
+                    downloader.withConnections(connections, maxConnections);
+                    long start = System.nanoTime();
+                    downloader.download(map);
+                    long time = (System.nanoTime() - start) / 1000000;
+                    times.add(time);
+                    report(run, time, map, setups, profiles, server, verify(server, output));
+                } finally {
+                    output.delete();
+                }
+            }
+        }
+        Collections.sort(times);
+        System.out.println("<--- " + runs + " runs: min " + times.get(0) + " ms, median " +
+                times.get(times.size() / 2) + " ms, max " + times.get(times.size() - 1) + " ms --->");
+    }
+
+    private static void report(int run, long time, DownloadMap map, List<Setup> setups,
+                               Map<InetAddress, LinkProfile> profiles, RangeServer server, boolean verified) {
+        double seconds = Math.max(1, time) / 1000.0;
+        System.out.println("<--- Run " + run + ": " + time + " ms, " +
+                StringUtils.humanReadableByteCount((long) (server.getSize() / seconds), true) + "/s" +
+                (verified ? "" : ", CORRUPT OUTPUT") + " --->");
+        long capacity = 0;
+        boolean limited = true;
+        for (DownloadEntry entry : map.getEntries().values()) {
+            Setup setup = setups.stream().filter(s -> s.ni.equals(entry.getNetworkInterface())).findFirst().get();
+            LinkProfile profile = setup.profile(profiles);
+            long speed = entry.getTracker().getAverageSpeed();
+            StringBuilder line = new StringBuilder("* ").append(entry.getId()).append(": ");
+            StringUtils.appendByteCount(line, entry.getTracker().getDownloaded(), true).append(" at ");
+            StringUtils.appendByteCount(line, speed, true).append("/s");
+            if (profile.isLimited()) {
+                capacity += profile.getBytesPerSec();
+                line.append(", ").append(Math.round(speed * 100.0 / profile.getBytesPerSec())).append("% of the link");
+            } else {
+                limited = false;
+            }
+            line.append(", ");
+            StringUtils.appendByteCount(line, server.getSent(setup.address()), true).append(" sent by the server");
+            System.out.println(line);
+        }
+        // The share of the links used, had they all been busy from the first to the last byte
+        if (limited) {
+            System.out.println("Link utilization: " + Math.round(server.getSize() / seconds * 100.0 / capacity) + "%");
+        }
+    }
+
+    /**
+     * Compares the output with the file of the server.
+     */
+    private static boolean verify(RangeServer server, File output) throws IOException {
+        if (output.length() != server.getSize()) return false;
+        byte[] expected = new byte[64 * 1024], actual = new byte[expected.length];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(output))) {
+            long position = 0;
+            int len;
+            while ((len = in.read(actual)) != -1) {
+                server.fill(expected, 0, len, position);
+                for (int i = 0; i < len; i++) {
+                    if (expected[i] != actual[i]) return false;
+                }
+                position += len;
+            }
+        }
+        return true;
+    }
+
+    private static long byteCount(String input) {
+        try {
+            return Long.parseLong(input);
+        } catch (NumberFormatException e) {
+            return StringUtils.byteCount(input);
+        }
+    }
+
+    private static class Setup {
+
+        private final NetworkInterface ni;
+        private float repartition = -1f;
+        private long throttle = -1L;
+
+        private Setup(NetworkInterface ni) {
+            this.ni = ni;
+        }
+
+        /**
+         * Returns the address the connections of the interface come from.
+         */
+        private InetAddress address() {
+            InetAddress first = null;
+            for (InetAddress address : Collections.list(ni.getInetAddresses())) {
+                if (address instanceof Inet4Address) return address;
+                if (first == null) first = address;
+            }
+            return first;
+        }
+
+        private LinkProfile profile(Map<InetAddress, LinkProfile> profiles) {
+            return profiles.getOrDefault(address(), LinkProfile.UNLIMITED);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.sofiman.smartdownloader.benchmarks;
+
+import com.github.sofiman.smartdownloader.utils.StringUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formats the figures of a progress line, with the methods returning strings and with the ones appending to a
+ * reused builder which the progress renderer draws with.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FormatBenchmark {
+
+    @Param({"512", "1536000", "7516192768"})
+    public long bytes;
+
+    private final StringBuilder builder = new StringBuilder(256);
+
+    @Benchmark
+    public String humanReadableByteCount() {
+        return StringUtils.humanReadableByteCount(bytes, false);
+    }
+
+    @Benchmark
+    public int appendByteCount() {
+        builder.setLength(0);
+        return StringUtils.appendByteCount(builder, bytes, false).length();
+    }
+
+    @Benchmark
+    public String progress() {
+        return StringUtils.progress('=', ' ', '>', "[%s] %.2f%%", 0.4242f, 50);
+    }
+
+    @Benchmark
+    public int appendProgress() {
+        builder.setLength(0);
+        builder.append('[');
+        StringUtils.appendProgress(builder, '=', ' ', '>', 0.4242f, 50).append("] ");
+        return StringUtils.appendDecimal(builder, 42.42).append('%').length();
+    }
+}
@@ -0,0 +1,574 @@
+package com.github.sofiman.smartdownloader.benchmarks;
+
+import com.github.sofiman.smartdownloader.http2.Hpack;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The server side of an h2c connection of the {@link RangeServer}, once the preface of the client was read.
+ * The thread of the connection reads the frames of the client, every request is answered by a worker of its
+ * own. The responses only send what the windows of the client allow, and wait for its WINDOW_UPDATE frames
+ * once the windows are used up.
+ * <p>
+ * The response headers are encoded here rather than by the encoder of the client, so the decoder is checked
+ * against a separate implementation: the fields which are the same on every response are added to the dynamic
+ * table then sent as indexes, the other values are Huffman coded from the code table of RFC 7541, and the
+ * header fields of the example C.6.1 of the RFC are sent with their encoding from the RFC.
+ */
+final class Http2Session {
+
+    private static final int DATA = 0x0, HEADERS = 0x1, RST_STREAM = 0x3, SETTINGS = 0x4, PING = 0x6,
+            GOAWAY = 0x7, WINDOW_UPDATE = 0x8, CONTINUATION = 0x9;
+    private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY = 0x20;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3, SETTINGS_INITIAL_WINDOW_SIZE = 0x4,
+            SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int NO_ERROR = 0x0, INTERNAL_ERROR = 0x2;
+    private static final int DEFAULT_WINDOW = 65535, DEFAULT_FRAME_SIZE = 16384, MAX_STREAMS = 100;
+
+    private final RangeServer server;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final RangeServer.Link link;
+    private final Random random;
+    private final Executor workers;
+    private final long goAwayAfter;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition credited = lock.newCondition();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final HeaderEncoder encoder = new HeaderEncoder();
+    private int connectionWindow = DEFAULT_WINDOW, initialWindow = DEFAULT_WINDOW;
+    private volatile int frameSize = DEFAULT_FRAME_SIZE;
+    private boolean closed;
+    private long sent;
+    private volatile int lastStream;
+    private volatile boolean goAway;
+
+    /**
+     * @param goAwayAfter the number of body bytes after which GOAWAY is sent, -1 to never send it
+     */
+    Http2Session(RangeServer server, Socket socket, InputStream in, RangeServer.Link link, Random random,
+                 Executor workers, long goAwayAfter) throws IOException {
+        this.server = server;
+        this.socket = socket;
+        this.in = new DataInputStream(in);
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.link = link;
+        this.random = random;
+        this.workers = workers;
+        this.goAwayAfter = goAwayAfter;
+    }
+
+    /**
+     * Serves the connection until the client closes it.
+     */
+    void run() throws IOException {
+        ByteBuffer settings = ByteBuffer.allocate(6);
+        settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_STREAMS);
+        write(SETTINGS, 0, 0, settings.array());
+        try {
+            int highest = 0;
+            Frame frame;
+            while ((frame = next()) != null) {
+                switch (frame.type) {
+                    case HEADERS:
+                        if (frame.stream <= highest || frame.stream % 2 == 0) {
+                            throw new IOException("Invalid stream identifier: " + frame.stream);
+                        }
+                        highest = frame.stream;
+                        onHeaders(frame);
+                        break;
+                    case RST_STREAM:
+                        onReset(frame.stream);
+                        break;
+                    case SETTINGS:
+                        if ((frame.flags & ACK) == 0) onSettings(frame);
+                        break;
+                    case PING:
+                        if ((frame.flags & ACK) == 0) write(PING, ACK, 0, frame.payload);
+                        break;
+                    case GOAWAY:
+                        return;
+                    case WINDOW_UPDATE:
+                        onWindowUpdate(frame);
+                        break;
+                    case CONTINUATION:
+                        throw new IOException("Unexpected CONTINUATION frame");
+                    default:
+                        // The requests have no body, PRIORITY and unknown frames are ignored
+                        break;
+                }
+            }
+        } finally {
+            lock.lock();
+            try {
+                closed = true;
+                credited.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void onHeaders(Frame frame) throws IOException {
+        int off = 0, end = frame.payload.length;
+        if ((frame.flags & PADDED) != 0) {
+            end -= frame.payload[0] & 0xFF;
+            off = 1;
+        }
+        if ((frame.flags & PRIORITY) != 0) off += 5;
+        if (off > end) throw new IOException("Invalid HEADERS padding");
+        ByteArrayOutputStream block = new ByteArrayOutputStream(end - off);
+        block.write(frame.payload, off, end - off);
+        int flags = frame.flags;
+        while ((flags & END_HEADERS) == 0) {
+            Frame continuation = next();
+            if (continuation == null || continuation.type != CONTINUATION || continuation.stream != frame.stream) {
+                throw new IOException("Expected CONTINUATION frame");
+            }
+            block.write(continuation.payload, 0, continuation.payload.length);
+            flags = continuation.flags;
+        }
+        List<String[]> headers = decoder.decode(block.toByteArray());
+        // The streams opened after GOAWAY are ignored, the client sends them again on another connection
+        if (goAway) return;
+        Stream stream = new Stream(frame.stream);
+        lock.lock();
+        try {
+            stream.window = initialWindow;
+            streams.put(stream.id, stream);
+        } finally {
+            lock.unlock();
+        }
+        workers.execute(() -> respond(stream, headers));
+    }
+
+    private void onReset(int id) {
+        lock.lock();
+        try {
+            Stream stream = streams.get(id);
+            if (stream != null) stream.reset = true;
+            credited.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onSettings(Frame frame) throws IOException {
+        if (frame.payload.length % 6 != 0) throw new IOException("Invalid SETTINGS frame");
+        ByteBuffer payload = ByteBuffer.wrap(frame.payload);
+        while (payload.hasRemaining()) {
+            int id = payload.getShort() & 0xFFFF;
+            int value = payload.getInt();
+            if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                lock.lock();
+                try {
+                    // The change applies to the windows of the open streams as well
+                    for (Stream stream : streams.values()) {
+                        stream.window += value - initialWindow;
+                    }
+                    initialWindow = value;
+                    credited.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            } else if (id == SETTINGS_MAX_FRAME_SIZE) {
+                frameSize = value;
+            }
+        }
+        write(SETTINGS, ACK, 0, new byte[0]);
+    }
+
+    private void onWindowUpdate(Frame frame) {
+        int increment = ByteBuffer.wrap(frame.payload).getInt() & 0x7FFFFFFF;
+        lock.lock();
+        try {
+            if (frame.stream == 0) {
+                connectionWindow += increment;
+            } else {
+                Stream stream = streams.get(frame.stream);
+                if (stream != null) stream.window += increment;
+            }
+            credited.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Answers the request of a stream, like {@link RangeServer} does over HTTP/1.1.
+     */
+    private void respond(Stream stream, List<String[]> request) {
+        try {
+            Thread.sleep(link.profile.delay(random));
+            String method = null, path = null, range = null;
+            for (String[] header : request) {
+                if (header[0].equals(":method")) {
+                    method = header[1];
+                } else if (header[0].equals(":path")) {
+                    path = header[1];
+                } else if (header[0].equals("range") && header[1].toLowerCase(Locale.ROOT).startsWith("bytes=")) {
+                    range = header[1];
+                }
+            }
+            List<String[]> response = new ArrayList<>();
+            long[] bounds = RangeServer.PATH.equals(path) ? server.resolve(range) : null;
+            if (bounds == null) {
+                boolean found = RangeServer.PATH.equals(path);
+                response.add(new String[]{":status", found ? "416" : "404"});
+                response.add(new String[]{"server", "SmartDownloader-RangeServer"});
+                if (found) response.add(new String[]{"content-range", "bytes */" + server.getSize()});
+                response.add(new String[]{"content-length", "0"});
+                headers(stream, response, true);
+                return;
+            }
+            long length = bounds[1] - bounds[0] + 1;
+            response.add(new String[]{":status", range != null ? "206" : "200"});
+            response.add(new String[]{"server", "SmartDownloader-RangeServer"});
+            response.add(new String[]{"cache-control", "private"});
+            response.add(new String[]{"date", "Mon, 21 Oct 2013 20:13:21 GMT"});
+            response.add(new String[]{"accept-ranges", "bytes"});
+            response.add(new String[]{"etag", server.getEtag()});
+            response.add(new String[]{"content-type", "application/octet-stream"});
+            if (range != null) {
+                response.add(new String[]{"content-range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + server.getSize()});
+            }
+            response.add(new String[]{"content-length", Long.toString(length)});
+            boolean head = "HEAD".equals(method);
+            if (headers(stream, response, head) && !head) {
+                body(stream, bounds[0], length);
+            }
+        } catch (IOException | InterruptedException ignored) {
+            // The connection is broken, the reader stops as well
+        } finally {
+            finished(stream);
+        }
+    }
+
+    /**
+     * Sends the response headers, split in a HEADERS and a CONTINUATION frame.
+     *
+     * @return false if the stream was refused by GOAWAY or reset by the client
+     */
+    private boolean headers(Stream stream, List<String[]> headers, boolean end) throws IOException {
+        writeLock.lock();
+        try {
+            // After GOAWAY, only the streams up to the last one which was answered are processed
+            if (goAway && stream.id > lastStream || stream.reset) return false;
+            lastStream = Math.max(lastStream, stream.id);
+            byte[] block = encoder.encode(headers);
+            int half = block.length / 2;
+            frame(HEADERS, end ? END_STREAM : 0, stream.id, block, 0, half);
+            frame(CONTINUATION, END_HEADERS, stream.id, block, half, block.length - half);
+            out.flush();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the body in DATA frames as the windows and the link allow. A failing response is reset in the middle.
+     */
+    private void body(Stream stream, long start, long length) throws IOException, InterruptedException {
+        long cut = RangeServer.cut(link, random, length);
+        byte[] buffer = new byte[frameSize];
+        long position = 0;
+        while (position < length) {
+            int reserved = reserve(stream, (int) Math.min(buffer.length, length - position));
+            if (reserved == 0) return;
+            int n = (int) link.limiter.acquire(reserved);
+            boolean fail = cut >= 0 && position + n > cut;
+            if (fail) n = (int) (cut - position);
+            if (n < reserved) refund(stream, reserved - n);
+            server.fill(buffer, 0, n, start + position);
+            position += n;
+            if (!data(stream, buffer, n, position == length && !fail)) return;
+            if (fail) {
+                write(RST_STREAM, 0, stream.id, ByteBuffer.allocate(4).putInt(INTERNAL_ERROR).array());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes up to the given number of bytes from the windows, waiting for the client to credit them if needed.
+     *
+     * @return the number of bytes taken, 0 if the stream or the connection ended
+     */
+    private int reserve(Stream stream, int max) throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && !stream.reset && (connectionWindow <= 0 || stream.window <= 0)) {
+                credited.await();
+            }
+            if (closed || stream.reset) return 0;
+            int n = Math.min(max, Math.min(connectionWindow, stream.window));
+            connectionWindow -= n;
+            stream.window -= n;
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refund(Stream stream, int n) {
+        lock.lock();
+        try {
+            connectionWindow += n;
+            stream.window += n;
+            credited.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends a DATA frame, then GOAWAY if the connection sent enough bytes. The streams which were answered
+     * before GOAWAY get as many bytes again to finish, the connection is shut down afterwards.
+     *
+     * @return false if the client reset the stream in the meantime
+     */
+    private boolean data(Stream stream, byte[] b, int n, boolean end) throws IOException {
+        writeLock.lock();
+        try {
+            if (stream.reset) {
+                // The bytes were not sent, they still belong to the window of the connection
+                refund(stream, n);
+                return false;
+            }
+            frame(DATA, end ? END_STREAM : 0, stream.id, b, 0, n);
+            link.sent.add(n);
+            sent += n;
+            if (goAwayAfter >= 0 && !goAway && sent >= goAwayAfter) {
+                goAway = true;
+                frame(GOAWAY, 0, 0, ByteBuffer.allocate(8).putInt(lastStream).putInt(NO_ERROR).array(), 0, 8);
+            }
+            out.flush();
+            if (goAway && sent >= 2 * goAwayAfter) {
+                // The grace period is over, the streams which are still open are cut
+                socket.shutdownOutput();
+                return false;
+            }
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Forgets a stream which was answered. After GOAWAY, the connection is shut down with the last stream.
+     */
+    private void finished(Stream stream) {
+        boolean done;
+        lock.lock();
+        try {
+            streams.remove(stream.id);
+            done = goAway;
+            for (int id : streams.keySet()) {
+                if (id <= lastStream) done = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (done) {
+            try {
+                // Closing would reset the connection, and lose the end of the responses if the client
+                // sent frames which were not read
+                socket.shutdownOutput();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private Frame next() throws IOException {
+        int first = in.read();
+        if (first == -1) return null;
+        int length = (first << 16) | in.readUnsignedShort();
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int stream = in.readInt() & 0x7FFFFFFF;
+        if (length > DEFAULT_FRAME_SIZE) throw new IOException("Frame too large: " + length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(type, flags, stream, payload);
+    }
+
+    private void write(int type, int flags, int stream, byte[] payload) throws IOException {
+        writeLock.lock();
+        try {
+            frame(type, flags, stream, payload, 0, payload.length);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void frame(int type, int flags, int stream, byte[] payload, int off, int length) throws IOException {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        out.write(ByteBuffer.allocate(4).putInt(stream).array());
+        out.write(payload, off, length);
+    }
+
+    private static final class Stream {
+
+        private final int id;
+        private int window;
+        private volatile boolean reset;
+
+        private Stream(int id) {
+            this.id = id;
+        }
+    }
+
+    private static final class Frame {
+
+        private final int type, flags, stream;
+        private final byte[] payload;
+
+        private Frame(int type, int flags, int stream, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.stream = stream;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Encodes the response headers of a connection. The fields which are the same on every response are added
+     * to the dynamic table the first time, the others are sent without indexing. The table never fills up, the
+     * responses only add a few fields.
+     */
+    private static final class HeaderEncoder {
+
+        private static final int STATIC_TABLE_SIZE = 61;
+        private static final Map<String, Integer> NAMES = new HashMap<>();
+        private static final List<String> STATUSES = Arrays.asList("200", "204", "206", "304", "400", "404", "500");
+        private static final Set<String> INDEXED = new HashSet<>(Arrays.asList(
+                "server", "cache-control", "date", "accept-ranges", "etag", "content-type"));
+        /**
+         * The fields of the example C.6.1 of RFC 7541, as literals with incremental indexing and Huffman coding.
+         */
+        private static final Map<String, byte[]> EXAMPLES = new HashMap<>();
+        /**
+         * The codes of RFC 7541 Appendix B for the characters of the values which are Huffman coded.
+         */
+        private static final String CODED = " */0123456789-besty";
+        private static final int[] CODES = {0x14, 0xf9, 0x18, 0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e,
+                0x1f, 0x16, 0x23, 0x5, 0x8, 0x9, 0x7a};
+        private static final int[] LENGTHS = {6, 8, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 6, 6, 5, 5, 5, 7};
+
+        static {
+            NAMES.put(":status", 8);
+            NAMES.put("accept-ranges", 18);
+            NAMES.put("cache-control", 24);
+            NAMES.put("content-length", 28);
+            NAMES.put("content-range", 30);
+            NAMES.put("content-type", 31);
+            NAMES.put("date", 33);
+            NAMES.put("etag", 34);
+            NAMES.put("server", 54);
+            EXAMPLES.put("cache-control: private", bytes(0x58, 0x85, 0xae, 0xc3, 0x77, 0x1a, 0x4b));
+            EXAMPLES.put("date: Mon, 21 Oct 2013 20:13:21 GMT", bytes(0x61, 0x96, 0xd0, 0x7a, 0xbe, 0x94, 0x10,
+                    0x54, 0xd4, 0x44, 0xa8, 0x20, 0x05, 0x95, 0x04, 0x0b, 0x81, 0x66, 0xe0, 0x82, 0xa6, 0x2d, 0x1b, 0xff));
+        }
+
+        private final Deque<String> table = new ArrayDeque<>();
+
+        byte[] encode(List<String[]> headers) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (String[] header : headers) {
+                String name = header[0], value = header[1], field = name + ": " + value;
+                int status = name.equals(":status") ? STATUSES.indexOf(value) : -1;
+                int dynamic = indexOf(field);
+                if (status >= 0) {
+                    integer(out, 0x80, 7, NAMES.get(":status") + status);
+                } else if (dynamic >= 0) {
+                    integer(out, 0x80, 7, STATIC_TABLE_SIZE + 1 + dynamic);
+                } else if (INDEXED.contains(name)) {
+                    byte[] example = EXAMPLES.get(field);
+                    if (example != null) {
+                        out.write(example, 0, example.length);
+                    } else {
+                        // Literal header field with incremental indexing, the value is not Huffman coded
+                        integer(out, 0x40, 6, NAMES.get(name));
+                        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+                        integer(out, 0x00, 7, bytes.length);
+                        out.write(bytes, 0, bytes.length);
+                    }
+                    table.addFirst(field);
+                } else {
+                    // Literal header field without indexing
+                    integer(out, 0x00, 4, NAMES.get(name));
+                    huffman(out, value);
+                }
+            }
+            return out.toByteArray();
+        }
+
+        private int indexOf(String field) {
+            int index = 0;
+            for (String entry : table) {
+                if (entry.equals(field)) return index;
+                index++;
+            }
+            return -1;
+        }
+
+        private static void huffman(ByteArrayOutputStream out, String value) {
+            ByteArrayOutputStream coded = new ByteArrayOutputStream();
+            long bits = 0;
+            int count = 0;
+            for (int i = 0; i < value.length(); i++) {
+                int symbol = CODED.indexOf(value.charAt(i));
+                if (symbol < 0) throw new IllegalArgumentException("No code for " + value.charAt(i));
+                bits = (bits << LENGTHS[symbol]) | CODES[symbol];
+                count += LENGTHS[symbol];
+                while (count >= 8) {
+                    count -= 8;
+                    coded.write((int) (bits >>> count));
+                }
+            }
+            // The last byte is padded with the first bits of EOS, all ones
+            if (count > 0) coded.write((int) (bits << (8 - count)) | (0xFF >>> count));
+            integer(out, 0x80, 7, coded.size());
+            out.write(coded.toByteArray(), 0, coded.size());
+        }
+
+        private static void integer(ByteArrayOutputStream out, int flags, int prefix, int value) {
+            int mask = (1 << prefix) - 1;
+            if (value < mask) {
+                out.write(flags | value);
+                return;
+            }
+            out.write(flags | mask);
+            value -= mask;
+            while (value >= 0x80) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        private static byte[] bytes(int... values) {
+            byte[] bytes = new byte[values.length];
+            for (int i = 0; i < values.length; i++) {
+                bytes[i] = (byte) values[i];
+            }
+            return bytes;
+        }
+    }
+}
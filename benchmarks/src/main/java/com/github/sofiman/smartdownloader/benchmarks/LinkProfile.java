@@ -0,0 +1,90 @@
+package com.github.sofiman.smartdownloader.benchmarks;
+
+import com.github.sofiman.smartdownloader.utils.StringUtils;
+
+import java.util.Random;
+
+/**
+ * The link emulated by the {@link RangeServer} for a client: its bandwidth, shared by all the connections of
+ * the client, the round trip time added before every response, its jitter, and the share of the responses
+ * which are cut in the middle of the body.
+ */
+public class LinkProfile {
+
+    public static final LinkProfile UNLIMITED = new LinkProfile(Long.MAX_VALUE, 0, 0, 0);
+
+    private final long bytesPerSec;
+    private final long rtt, jitter;
+    private final double failureRate;
+
+    /**
+     * @param rtt    the round trip time in milliseconds
+     * @param jitter the largest difference to the round trip time in milliseconds, either way
+     */
+    public LinkProfile(long bytesPerSec, long rtt, long jitter, double failureRate) {
+        if (bytesPerSec <= 0) throw new IllegalArgumentException("bytesPerSec should be positive");
+        if (rtt < 0 || jitter < 0) throw new IllegalArgumentException("The latency can not be negative");
+        if (failureRate < 0 || failureRate > 1) throw new IllegalArgumentException("Invalid failure rate");
+        this.bytesPerSec = bytesPerSec;
+        this.rtt = rtt;
+        this.jitter = jitter;
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Reads a profile as {@code <bandwidth>[,<rtt ms>[,<jitter ms>[,<failure rate>]]]}, the bandwidth is a byte
+     * count like the speeds of the program ({@code 16Mb}, {@code 2MiB}...) or {@code unlimited}.
+     */
+    public static LinkProfile parse(String input) {
+        String[] parts = input.split(",");
+        String bandwidth = parts[0].trim();
+        long bytesPerSec;
+        if (bandwidth.equalsIgnoreCase("unlimited")) {
+            bytesPerSec = Long.MAX_VALUE;
+        } else {
+            try {
+                bytesPerSec = Long.parseLong(bandwidth);
+            } catch (NumberFormatException e) {
+                bytesPerSec = StringUtils.byteCount(bandwidth);
+            }
+        }
+        long rtt = parts.length > 1 ? Long.parseLong(parts[1].trim()) : 0;
+        long jitter = parts.length > 2 ? Long.parseLong(parts[2].trim()) : 0;
+        double failureRate = parts.length > 3 ? Double.parseDouble(parts[3].trim()) : 0;
+        return new LinkProfile(bytesPerSec, rtt, jitter, failureRate);
+    }
+
+    /**
+     * Returns a round trip time drawn from the jitter, in milliseconds.
+     */
+    public long delay(Random random) {
+        if (jitter == 0) return rtt;
+        return Math.max(0, rtt + Math.round((random.nextDouble() * 2 - 1) * jitter));
+    }
+
+    public boolean isLimited() {
+        return bytesPerSec != Long.MAX_VALUE;
+    }
+
+    public long getBytesPerSec() {
+        return bytesPerSec;
+    }
+
+    public long getRtt() {
+        return rtt;
+    }
+
+    public long getJitter() {
+        return jitter;
+    }
+
+    public double getFailureRate() {
+        return failureRate;
+    }
+
+    @Override
+    public String toString() {
+        return (isLimited() ? StringUtils.humanReadableByteCount(bytesPerSec, true) + "/s" : "unlimited") +
+                ", " + rtt + " +/- " + jitter + " ms" + (failureRate > 0 ? ", " + failureRate * 100 + "% cut" : "");
+    }
+}
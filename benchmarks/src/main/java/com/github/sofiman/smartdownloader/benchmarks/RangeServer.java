@@ -0,0 +1,316 @@
+package com.github.sofiman.smartdownloader.benchmarks;
+
+import com.github.sofiman.smartdownloader.worker.RateLimiter;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A small HTTP/1.1 server answering the range requests of the downloader on the loopback interface, with a file
+ * generated from a seed so nothing is stored. Each client address gets the {@link LinkProfile} given for it:
+ * binding the connections to 127.0.0.x aliases makes every alias a link of its own, with its bandwidth shared
+ * by all its connections, its latency and its failures.
+ * <p>
+ * The latency is waited before every response, once more for the handshake of a new connection. A failure
+ * closes the connection after a random part of the body, like a dropped link.
+ * <p>
+ * A connection starting with the preface of HTTP/2 is served as h2c with prior knowledge by an
+ * {@link Http2Session}: every stream gets the latency and the failures of the link, a failure resets the stream.
+ * The server can also send GOAWAY after a given number of bytes on each connection, see {@link #setGoAwayAfter}.
+ */
+public class RangeServer implements Closeable {
+
+    public static final String PATH = "/file.bin";
+    /**
+     * The generated file repeats a random block, its prime length keeps misplaced ranges from matching.
+     */
+    private static final int BLOCK_SIZE = 65521;
+    private static final int WRITE_SIZE = 16 * 1024;
+
+    private final ServerSocket server;
+    private final long size, seed;
+    private final byte[] block;
+    private final String etag;
+    private final Map<InetAddress, LinkProfile> profiles;
+    private final LinkProfile fallback;
+    private final Map<InetAddress, Link> links = new ConcurrentHashMap<>();
+    private final AtomicLong accepted = new AtomicLong();
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "range-server");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile long goAwayAfter = -1;
+    private volatile boolean closed;
+
+    /**
+     * @param profiles the links of the client addresses, the others get the fallback
+     */
+    public RangeServer(InetSocketAddress address, long size, long seed, Map<InetAddress, LinkProfile> profiles,
+                       LinkProfile fallback) throws IOException {
+        this.server = new ServerSocket();
+        this.server.setReuseAddress(true);
+        this.server.bind(address, 128);
+        this.size = size;
+        this.seed = seed;
+        this.block = new byte[BLOCK_SIZE];
+        new Random(seed).nextBytes(block);
+        this.etag = "\"" + Long.toHexString(seed) + "-" + Long.toHexString(size) + "\"";
+        this.profiles = profiles;
+        this.fallback = fallback;
+    }
+
+    public void start() {
+        Thread acceptor = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Socket socket = server.accept();
+                    workers.submit(() -> serve(socket));
+                } catch (IOException e) {
+                    if (!closed) System.err.println("Could not accept a connection: " + e.getMessage());
+                }
+            }
+        }, "range-server-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String getUrl() {
+        return "http://" + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort() + PATH;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Copies the bytes of the generated file at the given position.
+     */
+    public void fill(byte[] b, int off, int len, long position) {
+        int index = (int) (position % BLOCK_SIZE);
+        while (len > 0) {
+            int n = Math.min(len, BLOCK_SIZE - index);
+            System.arraycopy(block, index, b, off, n);
+            off += n;
+            len -= n;
+            index = 0;
+        }
+    }
+
+    String getEtag() {
+        return etag;
+    }
+
+    /**
+     * Makes the HTTP/2 connections send GOAWAY once they sent the given number of body bytes: the streams
+     * already answered go on, the later ones must be sent again on another connection. A connection is shut
+     * down once it sent twice the number of bytes, cutting the streams which did not finish.
+     *
+     * @param bytes the number of bytes, -1 to never send GOAWAY
+     */
+    public void setGoAwayAfter(long bytes) {
+        this.goAwayAfter = bytes;
+    }
+
+    /**
+     * Returns the number of body bytes sent to the given client address.
+     */
+    public long getSent(InetAddress client) {
+        Link link = links.get(client);
+        return link != null ? link.sent.sum() : 0;
+    }
+
+    /**
+     * Forgets the bytes sent and the tokens of the links, before another run.
+     */
+    public void reset() {
+        links.clear();
+    }
+
+    private void serve(Socket socket) {
+        Link link = links.computeIfAbsent(socket.getInetAddress(),
+                address -> new Link(profiles.getOrDefault(address, fallback)));
+        Random random = new Random(seed ^ accepted.incrementAndGet());
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            long handshake = link.profile.delay(random);
+            List<String> head;
+            while ((head = readHead(in)) != null) {
+                if (head.get(0).equals("PRI * HTTP/2.0")) {
+                    byte[] preface = new byte[6];
+                    new DataInputStream(in).readFully(preface);
+                    if (!new String(preface, StandardCharsets.ISO_8859_1).equals("SM\r\n\r\n")) return;
+                    Thread.sleep(handshake);
+                    new Http2Session(this, s, in, link, random, workers, goAwayAfter).run();
+                    return;
+                }
+                Thread.sleep(handshake + link.profile.delay(random));
+                handshake = 0;
+                if (!respond(head, out, link, random)) return;
+            }
+        } catch (IOException | InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * Reads the lines of a request head, null if the connection ended before.
+     */
+    private static List<String> readHead(InputStream in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+                if (line.length() == 0) return lines.isEmpty() ? readHead(in) : lines;
+                lines.add(line.toString());
+                line.setLength(0);
+            } else {
+                line.append((char) b);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Answers a request.
+     *
+     * @return false if the connection must be closed
+     */
+    private boolean respond(List<String> head, OutputStream out, Link link, Random random)
+            throws IOException, InterruptedException {
+        String[] request = head.get(0).split(" ");
+        String method = request[0];
+        String range = null;
+        boolean close = false;
+        for (int i = 1; i < head.size(); i++) {
+            String header = head.get(i);
+            int colon = header.indexOf(':');
+            if (colon < 0) continue;
+            String name = header.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = header.substring(colon + 1).trim();
+            if (name.equals("range") && value.toLowerCase(Locale.ROOT).startsWith("bytes=")) {
+                range = value;
+            } else if (name.equals("connection")) {
+                close = value.equalsIgnoreCase("close");
+            }
+        }
+        if (request.length < 2 || !request[1].equals(PATH)) {
+            writeHead(out, "404 Not Found", "Content-Length: 0\r\n", close);
+            return !close;
+        }
+
+        long[] bounds = resolve(range);
+        if (bounds == null) {
+            writeHead(out, "416 Range Not Satisfiable", "Content-Range: bytes */" + size + "\r\n" +
+                    "Content-Length: 0\r\n", close);
+            return !close;
+        }
+        long start = bounds[0], end = bounds[1];
+        long length = end - start + 1;
+        writeHead(out, range != null ? "206 Partial Content" : "200 OK",
+                "Accept-Ranges: bytes\r\n" +
+                "ETag: " + etag + "\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                (range != null ? "Content-Range: bytes " + start + "-" + end + "/" + size + "\r\n" : "") +
+                "Content-Length: " + length + "\r\n", close);
+        if (method.equals("HEAD")) return !close;
+
+        // A failing response is cut somewhere in its body
+        long cut = cut(link, random, length);
+        byte[] buffer = new byte[WRITE_SIZE];
+        long sent = 0;
+        while (sent < length) {
+            int n = (int) link.limiter.acquire(Math.min(buffer.length, length - sent));
+            if (cut >= 0 && sent + n > cut) {
+                n = (int) (cut - sent);
+                fill(buffer, 0, n, start + sent);
+                out.write(buffer, 0, n);
+                link.sent.add(n);
+                out.flush();
+                return false;
+            }
+            fill(buffer, 0, n, start + sent);
+            out.write(buffer, 0, n);
+            link.sent.add(n);
+            sent += n;
+        }
+        out.flush();
+        return !close;
+    }
+
+    /**
+     * Returns the first and the last byte of a {@code bytes=} range, the whole file without a range, null if the
+     * range can not be satisfied.
+     */
+    long[] resolve(String range) {
+        long start = 0, end = size - 1;
+        if (range == null) return new long[]{start, end};
+        try {
+            String spec = range.substring(6).trim();
+            int dash = spec.indexOf('-');
+            if (dash == 0) {
+                start = Math.max(0, size - Long.parseLong(spec.substring(1)));
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                if (dash < spec.length() - 1) end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return null;
+        }
+        return start >= size || start > end ? null : new long[]{start, end};
+    }
+
+    /**
+     * Returns where a failing response is cut in its body, -1 if the response does not fail.
+     */
+    static long cut(Link link, Random random, long length) {
+        return random.nextDouble() < link.profile.getFailureRate() ? (long) (random.nextDouble() * length) : -1;
+    }
+
+    private static void writeHead(OutputStream out, String status, String headers, boolean close) throws IOException {
+        String head = "HTTP/1.1 " + status + "\r\n" +
+                "Server: SmartDownloader-RangeServer\r\n" +
+                headers +
+                "Connection: " + (close ? "close" : "keep-alive") + "\r\n" +
+                "\r\n";
+        out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        workers.shutdownNow();
+    }
+
+    static class Link {
+
+        final LinkProfile profile;
+        final RateLimiter limiter;
+        final LongAdder sent = new LongAdder();
+
+        private Link(LinkProfile profile) {
+            this.profile = profile;
+            this.limiter = new RateLimiter(profile.getBytesPerSec());
+        }
+    }
+}
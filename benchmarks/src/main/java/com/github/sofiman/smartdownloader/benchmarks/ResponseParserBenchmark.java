@@ -0,0 +1,97 @@
+package com.github.sofiman.smartdownloader.benchmarks;
+
+import com.github.sofiman.smartdownloader.worker.HttpResponseParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses the heads of real responses to range requests, as the servers of a CDN, nginx and a small server
+ * send them. The head is read at once, then in the small reads of a slow connection, and once more while
+ * collecting every header like the first request of a download does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ResponseParserBenchmark {
+
+    private static final String CDN = "HTTP/1.1 206 Partial Content\r\n" +
+            "Accept-Ranges: bytes\r\n" +
+            "Age: 51234\r\n" +
+            "Cache-Control: public, max-age=31536000, immutable\r\n" +
+            "Content-Range: bytes 104857600-209715199/4294967296\r\n" +
+            "Content-Type: application/octet-stream\r\n" +
+            "Date: Sun, 18 Oct 2026 10:12:43 GMT\r\n" +
+            "ETag: \"5f3c2a9e-100000000\"\r\n" +
+            "Last-Modified: Tue, 18 Aug 2026 15:04:30 GMT\r\n" +
+            "Server: ECAcc (par/6F3B)\r\n" +
+            "Vary: Accept-Encoding\r\n" +
+            "X-Cache: HIT\r\n" +
+            "X-Amz-Cf-Id: 3vZnv2kq0b9Tz8nXhzcW1qYI2n4Yq9t2VbJgFf0m4k6yKj3Jm8b1Qw==\r\n" +
+            "Via: 1.1 4f3e8b6d2c1a.cloudfront.net (CloudFront)\r\n" +
+            "Content-Length: 104857600\r\n" +
+            "Connection: keep-alive\r\n" +
+            "\r\n";
+    private static final String NGINX = "HTTP/1.1 206 Partial Content\r\n" +
+            "Server: nginx/1.24.0\r\n" +
+            "Date: Sun, 18 Oct 2026 10:12:43 GMT\r\n" +
+            "Content-Type: application/x-iso9660-image\r\n" +
+            "Content-Length: 1048576\r\n" +
+            "Last-Modified: Mon, 05 Oct 2026 08:00:00 GMT\r\n" +
+            "Connection: keep-alive\r\n" +
+            "ETag: \"651e6a40-c0000000\"\r\n" +
+            "Content-Range: bytes 0-1048575/3221225472\r\n" +
+            "\r\n";
+    private static final String MINIMAL = "HTTP/1.0 200 OK\r\n" +
+            "Content-Length: 4096\r\n" +
+            "\r\n";
+
+    @Param({"cdn", "nginx", "minimal"})
+    public String response;
+
+    /**
+     * The size of the reads handing the head to the parser, 0 for a single read.
+     */
+    @Param({"0", "64"})
+    public int readSize;
+
+    private final HttpResponseParser parser = new HttpResponseParser();
+    private byte[] head;
+
+    @Setup
+    public void setup() {
+        String text = response.equals("cdn") ? CDN : response.equals("nginx") ? NGINX : MINIMAL;
+        head = text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Benchmark
+    public long parse() throws IOException {
+        parser.reset();
+        feed();
+        return parser.getContentLength() + parser.getRangeStart();
+    }
+
+    @Benchmark
+    public void collect(Blackhole blackhole) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        parser.reset();
+        parser.collect(headers);
+        feed();
+        blackhole.consume(headers);
+    }
+
+    private void feed() throws IOException {
+        int step = readSize == 0 ? head.length : readSize;
+        for (int off = 0; off < head.length && !parser.isComplete(); off += step) {
+            parser.parse(head, off, Math.min(step, head.length - off));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.sofiman.smartdownloader.benchmarks;
+
+import com.github.sofiman.smartdownloader.worker.RateLimiter;
+import com.github.sofiman.smartdownloader.worker.ThrottledInputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what {@link ThrottledInputStream#read(byte[], int, int)} adds to a read. The source returns its
+ * bytes without copying them and the limits are too high to ever wait, so only the bookkeeping of the limiter
+ * is left: none when unlimited, the token bucket of the entry, and the one of the global budget above it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ThrottleBenchmark {
+
+    /**
+     * Fast enough that the bucket never runs out of tokens.
+     */
+    private static final long RATE = 1L << 50;
+
+    @Param({"1024", "8192", "65536"})
+    public int bufferSize;
+
+    private byte[] buffer;
+    private InputStream raw, unlimited, limited, nested;
+
+    @Setup
+    public void setup() {
+        buffer = new byte[bufferSize];
+        raw = new EndlessInputStream();
+        unlimited = new ThrottledInputStream(new EndlessInputStream());
+        limited = new ThrottledInputStream(new EndlessInputStream(), new RateLimiter(RATE, RATE));
+        nested = new ThrottledInputStream(new EndlessInputStream(),
+                new RateLimiter(RATE, new RateLimiter(RATE, RATE)));
+    }
+
+    @Benchmark
+    public int baseline() throws IOException {
+        return raw.read(buffer, 0, buffer.length);
+    }
+
+    @Benchmark
+    public int unlimited() throws IOException {
+        return unlimited.read(buffer, 0, buffer.length);
+    }
+
+    @Benchmark
+    public int limited() throws IOException {
+        return limited.read(buffer, 0, buffer.length);
+    }
+
+    @Benchmark
+    public int nested() throws IOException {
+        return nested.read(buffer, 0, buffer.length);
+    }
+
+    /**
+     * A stream which never ends and fills every read without touching the buffer.
+     */
+    static class EndlessInputStream extends InputStream {
+
+        @Override
+        public int read() {
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return len;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.sofiman.smartdownloader.benchmarks;
+
+import com.github.sofiman.smartdownloader.worker.DownloadTracker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports progress to a single {@link DownloadTracker} from several threads at once, like the connections
+ * of an entry do, while one thread reads the throughput as the progress renderer does.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TrackerBenchmark {
+
+    private DownloadTracker tracker;
+
+    @Setup
+    public void setup() throws IOException {
+        tracker = new DownloadTracker();
+        tracker.onCopyStarted(0);
+    }
+
+    @Benchmark
+    @Group("single")
+    @GroupThreads(1)
+    public void singleProgress() {
+        tracker.onCopyProgress(8192, 0);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(8)
+    public void contendedProgress() {
+        tracker.onCopyProgress(8192, 0);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public long contendedSpeed() {
+        return tracker.getSpeed() + tracker.getDownloaded();
+    }
+}
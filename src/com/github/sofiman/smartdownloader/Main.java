@@ -1,32 +1,94 @@
 package com.github.sofiman.smartdownloader;
 
 import com.github.sofiman.smartdownloader.utils.StringUtils;
+import com.github.sofiman.smartdownloader.worker.BatchDownloader;
+import com.github.sofiman.smartdownloader.worker.BatchManifest;
+import com.github.sofiman.smartdownloader.worker.DownloadDaemon;
 import com.github.sofiman.smartdownloader.worker.DownloadMap;
 import com.github.sofiman.smartdownloader.worker.Downloader;
+import com.github.sofiman.smartdownloader.worker.PieceManifest;
+import com.github.sofiman.smartdownloader.worker.ProgressRenderer;
 import com.github.sofiman.smartdownloader.utils.Parser;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 public class Main {
 
+    /**
+     * The options a batch download uses, the others only apply to a single download.
+     */
+    private static final Set<String> BATCH_OPTIONS = new HashSet<>(Arrays.asList("-b", "--batch", "-bs",
+            "--batch-split", "-mc", "--max-connections", "-tm", "--thread-mode", "-gs", "--global-speed",
+            "-ni", "-nip", "-ns"));
+    /**
+     * The options which only make sense for a single file, a daemon job gives its own url, output and hash.
+     */
+    private static final Set<String> FILE_OPTIONS = new HashSet<>(Arrays.asList("-u", "--url", "-o", "--output",
+            "-h", "--hash", "-ht", "--hash-type", "-m", "--mirror", "-pm", "--pieces", "-dc", "--decompress",
+            "-mp", "--metrics-port"));
+
     public static void main(String[] args) throws Exception {
         Parser parser = new Parser();
         parser.parse(args);
         String url = null, output = null, hash = null, hashType = null;
+        Downloader.OutputMode outputMode = Downloader.OutputMode.DIRECT;
+        Downloader.Engine engine = Downloader.Engine.BLOCKING;
+        int connections = 1, maxConnections = 4;
+        Downloader.ThreadMode threadMode = Downloader.ThreadMode.PLATFORM;
+        Downloader.Transport transport = Downloader.Transport.HTTP1;
+        long probe = -1L;
+        PieceManifest pieces = null;
+        String decompress = null;
+        List<String> mirrors = new ArrayList<>();
+        int refreshRate = ProgressRenderer.DEFAULT_RATE;
+        File metricsFile = null;
+        InetSocketAddress metricsAddress = null;
+        BatchManifest batch = null;
+        long splitSize = BatchDownloader.DEFAULT_SPLIT_SIZE;
+        InetSocketAddress daemonAddress = null;
+        int daemonJobs = 1;
         DownloadMap map = new DownloadMap();
         String niState = null;
         float pState = -1f;
         long spState = -1L;
+        long globalSpeed = -1L;
         if(parser.hasOption("--help")){
             System.out.println("Usage: java -jar SmartDownload.jar (option) [argument] (option) [argument] ...");
             System.out.println("Additional commands:");
             System.out.println("\t-h, --help: Show this list");
             System.out.println("\t-l, --list: Shows all available network interfaces");
             System.out.println("Available options:");
-            System.out.println("\t-h, --hash: Specifies a file hash to check at the end of the download (hash type is required)");
-            System.out.println("\t-ht, --hash-type: Specify the hash type of the file hash (required for -h, --hash)");
+            System.out.println("\t-h, --hash: Specifies a file hash to check at the end of the download (hash type is required), several hashes can be separated by commas");
+            System.out.println("\t-ht, --hash-type: Specify the hash type of the file hash (required for -h, --hash), in the same order as the hashes");
+            System.out.println("\t-pm, --pieces: Specify a piece manifest, every piece is verified as soon as it is downloaded and fetched again if corrupt");
+            System.out.println("\t-wm, --write-mode: Specify how ranges are written: direct (default) or chunks");
+            System.out.println("\t-e, --engine: Specify how connections are driven: blocking (default, one thread per connection) or nio (a single thread for all connections)");
+            System.out.println("\t-c, --connections: Specify the number of connections opened on every network interface at first (default 1)");
+            System.out.println("\t-mc, --max-connections: Specify the maximum number of connections of every network interface, more are opened while the speed keeps rising (default 4)");
+            System.out.println("\t-tm, --thread-mode: Specify the threads running the downloads: platform (default) or virtual (Java 21+)");
+            System.out.println("\t-gs, --global-speed: Specify the maximum download speed of all the network interfaces together, the part an interface does not use goes to the others");
+            System.out.println("\t-tr, --transport: Specify the protocol of the requests: http1 (default) or h2c (HTTP/2 without TLS, one connection per network interface)");
+            System.out.println("\t-m, --mirror: Specify another URL serving the same file, the ranges are shared between the URLs according to their speed (can be repeated)");
+            System.out.println("\t-dc, --decompress: Inflate the downloaded gzip or deflate data into the given file while downloading, the output keeps the compressed bytes");
+            System.out.println("\t-rr, --refresh-rate: Specify how many times per second the progress is drawn (default 5, at most 60)");
+            System.out.println("\t-mf, --metrics-file: Write the metrics of the network interfaces to the given file every second, in the Prometheus text format");
+            System.out.println("\t-mp, --metrics-port: Serve the metrics on /metrics at the given port (on the loopback interface) or host:port");
+            System.out.println("\t-b, --batch: Download every file listed in the given manifest (<url> <output> [<hash> [<hash type>]] per line) instead of a single URL, using --max-connections connections on every network interface (only -mc, -bs, -tm, -gs and the network interface options apply)");
+            System.out.println("\t-bs, --batch-split: Specify the size of the ranges the files larger than it are split into in batch mode (default 8MiB)");
+            System.out.println("\t-dm, --daemon: Keep running and download the jobs submitted to http://<address>/jobs, at the given port (on the loopback interface) or host:port, with the other options as the settings of every job (except -u, -o, -h, -ht, -m, -pm, -dc and -mp)");
+            System.out.println("\t-dj, --daemon-jobs: Specify how many jobs the daemon downloads at once (default 1)");
+            System.out.println("\t-p, --probe: Measure each network interface for the given seconds and share the file according to their speed");
             System.out.println("Required options:");
             System.out.println("\t-u, --url: Specify the URL");
             System.out.println("\t-o, --output: Specify the Output file path");
@@ -77,17 +139,136 @@ public class Main {
                 }
             } else if (option.getId().equalsIgnoreCase("-o") || option.getId().equalsIgnoreCase("--output")) {
                 output = option.getArgument();
+            } else if (option.getId().equalsIgnoreCase("-m") || option.getId().equalsIgnoreCase("--mirror")) {
+                mirrors.add(option.getArgument());
+            } else if (option.getId().equalsIgnoreCase("-dc") || option.getId().equalsIgnoreCase("--decompress")) {
+                decompress = option.getArgument();
+            } else if (option.getId().equalsIgnoreCase("-rr") || option.getId().equalsIgnoreCase("--refresh-rate")) {
+                try {
+                    refreshRate = Integer.parseInt(option.getArgument());
+                } catch (Exception e) {
+                    System.err.println("Invalid refresh rate: See help (--help) for further information");
+                    return;
+                }
+            } else if (option.getId().equalsIgnoreCase("-mf") || option.getId().equalsIgnoreCase("--metrics-file")) {
+                metricsFile = new File(option.getArgument());
+            } else if (option.getId().equalsIgnoreCase("-mp") || option.getId().equalsIgnoreCase("--metrics-port")) {
+                try {
+                    String argument = option.getArgument();
+                    int colon = argument.lastIndexOf(':');
+                    metricsAddress = colon < 0 ?
+                            new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(argument)) :
+                            new InetSocketAddress(argument.substring(0, colon), Integer.parseInt(argument.substring(colon + 1)));
+                } catch (Exception e) {
+                    System.err.println("Invalid metrics address: See help (--help) for further information");
+                    return;
+                }
+            } else if (option.getId().equalsIgnoreCase("-b") || option.getId().equalsIgnoreCase("--batch")) {
+                try {
+                    batch = BatchManifest.load(new File(option.getArgument()));
+                } catch (IOException e) {
+                    System.err.println("Could not read the batch manifest: " + e.getMessage());
+                    return;
+                }
+            } else if (option.getId().equalsIgnoreCase("-bs") || option.getId().equalsIgnoreCase("--batch-split")) {
+                try {
+                    splitSize = Long.parseLong(option.getArgument());
+                } catch (Exception e) {
+                    try {
+                        splitSize = StringUtils.byteCount(option.getArgument());
+                    } catch (Exception e1) {
+                        System.err.println("Invalid split size: See help (--help) for further information");
+                        return;
+                    }
+                }
+            } else if (option.getId().equalsIgnoreCase("-dm") || option.getId().equalsIgnoreCase("--daemon")) {
+                try {
+                    String argument = option.getArgument();
+                    int colon = argument.lastIndexOf(':');
+                    daemonAddress = colon < 0 ?
+                            new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(argument)) :
+                            new InetSocketAddress(argument.substring(0, colon), Integer.parseInt(argument.substring(colon + 1)));
+                } catch (Exception e) {
+                    System.err.println("Invalid daemon address: See help (--help) for further information");
+                    return;
+                }
+            } else if (option.getId().equalsIgnoreCase("-dj") || option.getId().equalsIgnoreCase("--daemon-jobs")) {
+                try {
+                    daemonJobs = Integer.parseInt(option.getArgument());
+                } catch (Exception e) {
+                    System.err.println("Invalid job count: See help (--help) for further information");
+                    return;
+                }
+            } else if (option.getId().equalsIgnoreCase("-p") || option.getId().equalsIgnoreCase("--probe")) {
+                try {
+                    probe = Math.round(Float.parseFloat(option.getArgument()) * 1000f);
+                } catch (Exception e) {
+                    System.err.println("Invalid probe duration: See help (--help) for further information");
+                    return;
+                }
+            } else if (option.getId().equalsIgnoreCase("-pm") || option.getId().equalsIgnoreCase("--pieces")) {
+                try {
+                    pieces = PieceManifest.load(new File(option.getArgument()));
+                } catch (IOException e) {
+                    System.err.println("Could not read the piece manifest: " + e.getMessage());
+                    return;
+                }
+            } else if (option.getId().equalsIgnoreCase("-e") || option.getId().equalsIgnoreCase("--engine")) {
+                try {
+                    engine = Downloader.Engine.valueOf(option.getArgument().toUpperCase());
+                } catch (Exception e) {
+                    System.err.println("Invalid engine: See help (--help) for further information");
+                    return;
+                }
+            } else if (option.getId().equalsIgnoreCase("-c") || option.getId().equalsIgnoreCase("--connections")) {
+                try {
+                    connections = Integer.parseInt(option.getArgument());
+                } catch (Exception e) {
+                    System.err.println("Invalid connection count: See help (--help) for further information");
+                    return;
+                }
+            } else if (option.getId().equalsIgnoreCase("-mc") || option.getId().equalsIgnoreCase("--max-connections")) {
+                try {
+                    maxConnections = Integer.parseInt(option.getArgument());
+                } catch (Exception e) {
+                    System.err.println("Invalid connection count: See help (--help) for further information");
+                    return;
+                }
+            } else if (option.getId().equalsIgnoreCase("-tm") || option.getId().equalsIgnoreCase("--thread-mode")) {
+                try {
+                    threadMode = Downloader.ThreadMode.valueOf(option.getArgument().toUpperCase());
+                } catch (Exception e) {
+                    System.err.println("Invalid thread mode: See help (--help) for further information");
+                    return;
+                }
+            } else if (option.getId().equalsIgnoreCase("-gs") || option.getId().equalsIgnoreCase("--global-speed")) {
+                try {
+                    globalSpeed = Long.parseLong(option.getArgument());
+                } catch (Exception e) {
+                    try {
+                        globalSpeed = StringUtils.byteCount(option.getArgument());
+                    } catch (Exception e1) {
+                        System.err.println("Invalid global speed: See help (--help) for further information");
+                        return;
+                    }
+                }
+            } else if (option.getId().equalsIgnoreCase("-tr") || option.getId().equalsIgnoreCase("--transport")) {
+                try {
+                    transport = Downloader.Transport.valueOf(option.getArgument().toUpperCase());
+                } catch (Exception e) {
+                    System.err.println("Invalid transport: See help (--help) for further information");
+                    return;
+                }
+            } else if (option.getId().equalsIgnoreCase("-wm") || option.getId().equalsIgnoreCase("--write-mode")) {
+                try {
+                    outputMode = Downloader.OutputMode.valueOf(option.getArgument().toUpperCase());
+                } catch (Exception e) {
+                    System.err.println("Invalid write mode: See help (--help) for further information");
+                    return;
+                }
             }
         }
 
-        if(url == null){
-            System.err.println("Missing url: See help (--help) for further information");
-            return;
-        }
-        if(output == null){
-            System.err.println("Missing output file: See help (--help) for further information");
-            return;
-        }
         if (niState != null) {
             map.with(NetworkInterface.getByName(niState), pState, spState);
         }
@@ -95,9 +276,60 @@ public class Main {
             System.err.println("No network interfaces found: See help (--help) for further information");
             return;
         }
-
-        Downloader downloader = new Downloader(url, new File(output));
+        if (batch != null) {
+            for (Parser.Option option : parser.getOptions()) {
+                if (!BATCH_OPTIONS.contains(option.getId().toLowerCase(Locale.ROOT))) {
+                    System.err.println("The option " + option.getId() + " can not be used with a batch: See help (--help) for further information");
+                    return;
+                }
+            }
+            BatchDownloader downloader = new BatchDownloader(batch);
+            downloader.withConnections(maxConnections);
+            downloader.withSplitSize(splitSize);
+            downloader.withThreadMode(threadMode);
+            downloader.withGlobalSpeed(globalSpeed);
+            if (!downloader.download(map.build())) {
+                System.exit(1);
+            }
+            return;
+        }
+        Downloader downloader = new Downloader(url, output != null ? new File(output) : null);
         downloader.withChecksum(hash, hashType);
+        downloader.withOutputMode(outputMode);
+        downloader.withEngine(engine);
+        downloader.withConnections(connections, maxConnections);
+        downloader.withThreadMode(threadMode);
+        downloader.withTransport(transport);
+        downloader.withGlobalSpeed(globalSpeed);
+        downloader.withProbe(probe);
+        downloader.withPieces(pieces);
+        downloader.withRefreshRate(refreshRate);
+        downloader.withMetrics(metricsFile, metricsAddress);
+        downloader.withMirrors(mirrors);
+        if (decompress != null) {
+            downloader.withDecompression(new File(decompress));
+        }
+        if (daemonAddress != null) {
+            for (Parser.Option option : parser.getOptions()) {
+                if (FILE_OPTIONS.contains(option.getId().toLowerCase(Locale.ROOT))) {
+                    System.err.println("The option " + option.getId() + " can not be used with a daemon: See help (--help) for further information");
+                    return;
+                }
+            }
+            DownloadDaemon daemon = new DownloadDaemon(daemonAddress, map, downloader, daemonJobs);
+            Runtime.getRuntime().addShutdownHook(new Thread(daemon::close));
+            daemon.start();
+            daemon.await();
+            return;
+        }
+        if(url == null){
+            System.err.println("Missing url: See help (--help) for further information");
+            return;
+        }
+        if(output == null){
+            System.err.println("Missing output file: See help (--help) for further information");
+            return;
+        }
         downloader.download(map.build());
     }
 }
@@ -0,0 +1,208 @@
+package com.github.sofiman.smartdownloader.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Header compression of HTTP/2 (RFC 7541). Header lists are represented as name and value pairs,
+ * names being lower case as HTTP/2 requires.
+ */
+public final class Hpack {
+
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+            {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+            {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+            {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+            {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+            {"www-authenticate", ""}
+    };
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * Decodes header blocks, keeping the dynamic table between the blocks of a connection.
+     */
+    public static final class Decoder {
+
+        private final Deque<String[]> table = new ArrayDeque<>();
+        private final int maxTableSize;
+        private int tableSize, capacity;
+        private byte[] src;
+        private int pos, end;
+
+        /**
+         * @param maxTableSize the SETTINGS_HEADER_TABLE_SIZE sent to the peer
+         */
+        public Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.capacity = maxTableSize;
+        }
+
+        public List<String[]> decode(byte[] block) throws IOException {
+            src = block;
+            pos = 0;
+            end = block.length;
+            List<String[]> headers = new ArrayList<>();
+            boolean first = true;
+            while (pos < end) {
+                int b = src[pos] & 0xFF;
+                if ((b & 0x80) != 0) {
+                    headers.add(entry(integer(7)));
+                } else if ((b & 0x40) != 0) {
+                    String[] header = literal(6);
+                    add(header);
+                    headers.add(header);
+                } else if ((b & 0x20) != 0) {
+                    // Table size updates are only allowed at the start of a block
+                    if (!first) throw new IOException("Dynamic table size update after a header");
+                    int size = integer(5);
+                    if (size > maxTableSize) throw new IOException("Dynamic table size too large: " + size);
+                    capacity = size;
+                    evict(0);
+                    continue;
+                } else {
+                    // Without indexing and never indexed only differ for intermediaries
+                    headers.add(literal(4));
+                }
+                first = false;
+            }
+            return headers;
+        }
+
+        private String[] entry(int index) throws IOException {
+            if (index <= 0) throw new IOException("Invalid header index: " + index);
+            if (index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1];
+            int dynamic = index - STATIC_TABLE.length - 1;
+            if (dynamic >= table.size()) throw new IOException("Invalid header index: " + index);
+            Iterator<String[]> it = table.iterator();
+            for (int i = 0; i < dynamic; i++) it.next();
+            return it.next();
+        }
+
+        private String[] literal(int prefix) throws IOException {
+            int index = integer(prefix);
+            String name = index == 0 ? string() : entry(index)[0];
+            return new String[]{name, string()};
+        }
+
+        private void add(String[] header) {
+            int size = size(header);
+            evict(size);
+            // An entry larger than the table empties it and is not added
+            if (size <= capacity) {
+                table.addFirst(header);
+                tableSize += size;
+            }
+        }
+
+        private void evict(int room) {
+            while (!table.isEmpty() && tableSize + room > capacity) {
+                tableSize -= size(table.removeLast());
+            }
+        }
+
+        private int integer(int prefix) throws IOException {
+            int mask = (1 << prefix) - 1;
+            int value = src[pos++] & mask;
+            if (value < mask) return value;
+            int shift = 0, b;
+            do {
+                if (pos >= end) throw new IOException("Truncated header integer");
+                if (shift > 28) throw new IOException("Header integer overflow");
+                b = src[pos++] & 0xFF;
+                value += (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (value < 0) throw new IOException("Header integer overflow");
+            return value;
+        }
+
+        private String string() throws IOException {
+            if (pos >= end) throw new IOException("Truncated header string");
+            boolean huffman = (src[pos] & 0x80) != 0;
+            int length = integer(7);
+            if (length > end - pos) throw new IOException("Truncated header string");
+            byte[] bytes = huffman ? Huffman.decode(src, pos, length) : Arrays.copyOfRange(src, pos, pos + length);
+            pos += length;
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Encodes header blocks without touching the dynamic table, so the encoder has no state to keep in sync
+     * with the peer. Request headers are few and small, only the names are taken from the static table.
+     */
+    public static final class Encoder {
+
+        public byte[] encode(List<String[]> headers) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (String[] header : headers) {
+                String name = header[0].toLowerCase(Locale.ROOT);
+                Integer index = STATIC_NAMES.get(name);
+                // Literal header field without indexing
+                if (index != null) {
+                    integer(out, 0x00, 4, index);
+                } else {
+                    integer(out, 0x00, 4, 0);
+                    string(out, name);
+                }
+                string(out, header[1]);
+            }
+            return out.toByteArray();
+        }
+
+        private static void string(ByteArrayOutputStream out, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+            if (Huffman.encodedLength(bytes) < bytes.length) {
+                bytes = Huffman.encode(bytes);
+                integer(out, 0x80, 7, bytes.length);
+            } else {
+                integer(out, 0x00, 7, bytes.length);
+            }
+            out.write(bytes, 0, bytes.length);
+        }
+
+        private static void integer(ByteArrayOutputStream out, int flags, int prefix, int value) {
+            int mask = (1 << prefix) - 1;
+            if (value < mask) {
+                out.write(flags | value);
+                return;
+            }
+            out.write(flags | mask);
+            value -= mask;
+            while (value >= 0x80) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    private static int size(String[] header) {
+        return header[0].length() + header[1].length() + ENTRY_OVERHEAD;
+    }
+}
@@ -0,0 +1,384 @@
+package com.github.sofiman.smartdownloader.http2;
+
+import com.github.sofiman.smartdownloader.utils.Threads;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A client HTTP/2 connection (RFC 7540) carrying many requests at once, each one on its own stream.
+ * The connection is opened with prior knowledge (h2c): the preface is sent right away, without any upgrade.
+ * <p>
+ * A reader thread dispatches the frames of the server to the streams, the writers share a lock.
+ * The receive windows are much larger than the defaults of the protocol (64 KiB), which would otherwise
+ * cap every stream to 64 KiB per round trip: they are credited back as the streams are read. A stream
+ * starts with a smaller window which grows while it is read as fast as it arrives, so a cancelled stream
+ * wastes little of what the server already sent.
+ */
+public class Http2Connection implements Closeable {
+
+    public static final int INITIAL_STREAM_WINDOW = 1024 * 1024;
+    public static final int STREAM_WINDOW = 8 * 1024 * 1024;
+    public static final int CONNECTION_WINDOW = 32 * 1024 * 1024;
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int FRAME_SIZE = 64 * 1024;
+    private static final int DEFAULT_FRAME_SIZE = 16384;
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    static final int DATA = 0x0, HEADERS = 0x1, RST_STREAM = 0x3, SETTINGS = 0x4, PUSH_PROMISE = 0x5,
+            PING = 0x6, GOAWAY = 0x7, WINDOW_UPDATE = 0x8, CONTINUATION = 0x9;
+    static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY = 0x20;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2, SETTINGS_MAX_CONCURRENT_STREAMS = 0x3,
+            SETTINGS_INITIAL_WINDOW_SIZE = 0x4, SETTINGS_MAX_FRAME_SIZE = 0x5;
+    static final int NO_ERROR = 0x0, CANCEL = 0x8;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock streamLock = new ReentrantLock();
+    private final Condition slots = streamLock.newCondition();
+    private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final AtomicInteger unacked = new AtomicInteger();
+    private int nextStreamId = 1, active, maxStreams = Integer.MAX_VALUE;
+    private volatile int peerFrameSize = DEFAULT_FRAME_SIZE;
+    private volatile boolean goAway;
+    private volatile IOException failure;
+
+    private Http2Connection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), FRAME_SIZE));
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Starts an HTTP/2 connection over the socket: sends the preface and the settings of the client,
+     * then starts reading the frames of the server.
+     */
+    public static Http2Connection open(Socket socket) throws IOException {
+        Http2Connection connection = new Http2Connection(socket);
+        ByteBuffer settings = ByteBuffer.allocate(18);
+        settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+        settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(INITIAL_STREAM_WINDOW);
+        settings.putShort((short) SETTINGS_MAX_FRAME_SIZE).putInt(FRAME_SIZE);
+        connection.writeLock.lock();
+        try {
+            connection.out.write(PREFACE);
+            connection.frame(SETTINGS, 0, 0, settings.array(), 0, settings.capacity());
+            connection.frame(WINDOW_UPDATE, 0, 0, increment(CONNECTION_WINDOW - DEFAULT_WINDOW), 0, 4);
+            connection.out.flush();
+        } finally {
+            connection.writeLock.unlock();
+        }
+        Threads.factory("http2", false).newThread(connection::read).start();
+        return connection;
+    }
+
+    /**
+     * Returns true while new streams can be opened on this connection.
+     */
+    public boolean isUsable() {
+        return !goAway && failure == null;
+    }
+
+    /**
+     * Opens a stream sending the given request headers, without any body. Waits for a free stream
+     * if the server limits the number of concurrent streams.
+     *
+     * @param headers the pseudo-headers first, then the other headers with lower case names
+     */
+    public Http2Stream request(List<String[]> headers) throws IOException {
+        streamLock.lock();
+        try {
+            while (active >= maxStreams && isUsable()) {
+                slots.await();
+            }
+            if (!isUsable()) throw new IOException("The HTTP/2 connection is shut down", failure);
+            active++;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            streamLock.unlock();
+        }
+
+        byte[] block = encoder.encode(headers);
+        writeLock.lock();
+        try {
+            // Streams must be opened in the order of their identifiers
+            Http2Stream stream = new Http2Stream(this, nextStreamId);
+            nextStreamId += 2;
+            if (nextStreamId < 0) goAway = true;
+            streams.put(stream.getId(), stream);
+            int frameSize = peerFrameSize;
+            int length = Math.min(block.length, frameSize);
+            frame(HEADERS, END_STREAM | (length == block.length ? END_HEADERS : 0), stream.getId(), block, 0, length);
+            for (int off = length; off < block.length; off += length) {
+                length = Math.min(block.length - off, frameSize);
+                frame(CONTINUATION, off + length == block.length ? END_HEADERS : 0, stream.getId(), block, off, length);
+            }
+            out.flush();
+            return stream;
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends GOAWAY and closes the socket, the streams which are still open fail.
+     */
+    @Override
+    public void close() {
+        if (failure != null) return;
+        try {
+            ByteBuffer payload = ByteBuffer.allocate(8).putInt(0).putInt(NO_ERROR);
+            write(GOAWAY, 0, 0, payload.array());
+        } catch (IOException ignored) {
+        }
+        fail(new IOException("The HTTP/2 connection is closed"));
+    }
+
+    /**
+     * Credits the connection window with bytes read (or discarded) by a stream.
+     */
+    void consumed(int length) throws IOException {
+        int pending = unacked.addAndGet(length);
+        if (pending >= CONNECTION_WINDOW / 4 && unacked.compareAndSet(pending, 0)) {
+            write(WINDOW_UPDATE, 0, 0, increment(pending));
+        }
+    }
+
+    void windowUpdate(int stream, int length) throws IOException {
+        write(WINDOW_UPDATE, 0, stream, increment(length));
+    }
+
+    void reset(int stream, int code) throws IOException {
+        write(RST_STREAM, 0, stream, ByteBuffer.allocate(4).putInt(code).array());
+    }
+
+    /**
+     * Frees the slot of a stream which will not receive anything anymore.
+     */
+    void closed(Http2Stream stream) {
+        if (streams.remove(stream.getId()) == null) return;
+        streamLock.lock();
+        try {
+            active--;
+            slots.signal();
+        } finally {
+            streamLock.unlock();
+        }
+    }
+
+    private void read() {
+        try {
+            Frame frame;
+            while ((frame = next()) != null) {
+                switch (frame.type) {
+                    case DATA:
+                        onData(frame);
+                        break;
+                    case HEADERS:
+                        onHeaders(frame);
+                        break;
+                    case RST_STREAM: {
+                        Http2Stream stream = streams.get(frame.stream);
+                        int code = ByteBuffer.wrap(frame.payload).getInt();
+                        if (stream != null) stream.onFailure(new IOException("Stream reset by the server: error " + code));
+                        break;
+                    }
+                    case SETTINGS:
+                        if ((frame.flags & ACK) == 0) onSettings(frame);
+                        break;
+                    case PUSH_PROMISE:
+                        throw new IOException("Server push was disabled");
+                    case PING:
+                        if ((frame.flags & ACK) == 0) write(PING, ACK, 0, frame.payload);
+                        break;
+                    case GOAWAY:
+                        onGoAway(frame);
+                        break;
+                    case CONTINUATION:
+                        throw new IOException("Unexpected CONTINUATION frame");
+                    default:
+                        // WINDOW_UPDATE and PRIORITY only matter to a sender, unknown frames are ignored
+                        break;
+                }
+            }
+            fail(new EOFException("The server closed the HTTP/2 connection"));
+        } catch (IOException e) {
+            fail(e);
+        } catch (BufferUnderflowException e) {
+            fail(new IOException("Truncated HTTP/2 frame", e));
+        }
+    }
+
+    private void onData(Frame frame) throws IOException {
+        int length = frame.payload.length;
+        int padding = 0, off = 0;
+        if ((frame.flags & PADDED) != 0) {
+            padding = (frame.payload[0] & 0xFF) + 1;
+            off = 1;
+            if (padding > length) throw new IOException("Invalid DATA padding");
+        }
+        Http2Stream stream = streams.get(frame.stream);
+        boolean end = (frame.flags & END_STREAM) != 0;
+        if (stream != null && stream.onData(ByteBuffer.wrap(frame.payload, off, length - padding), end)) {
+            if (padding > 0) stream.consume(padding);
+        } else {
+            // Data of a cancelled stream still counts against the window of the connection
+            consumed(length);
+        }
+    }
+
+    private void onHeaders(Frame frame) throws IOException {
+        int off = 0, end = frame.payload.length;
+        if ((frame.flags & PADDED) != 0) {
+            end -= frame.payload[0] & 0xFF;
+            off = 1;
+        }
+        if ((frame.flags & PRIORITY) != 0) off += 5;
+        if (off > end) throw new IOException("Invalid HEADERS padding");
+        ByteArrayOutputStream block = new ByteArrayOutputStream(end - off);
+        block.write(frame.payload, off, end - off);
+        int flags = frame.flags;
+        while ((flags & END_HEADERS) == 0) {
+            Frame continuation = next();
+            if (continuation == null || continuation.type != CONTINUATION || continuation.stream != frame.stream) {
+                throw new IOException("Expected CONTINUATION frame");
+            }
+            block.write(continuation.payload, 0, continuation.payload.length);
+            flags = continuation.flags;
+        }
+        // The block is decoded even for a cancelled stream, the dynamic table must stay in sync
+        List<String[]> headers = decoder.decode(block.toByteArray());
+        Http2Stream stream = streams.get(frame.stream);
+        if (stream != null) stream.onHeaders(headers, (frame.flags & END_STREAM) != 0);
+    }
+
+    private void onSettings(Frame frame) throws IOException {
+        if (frame.payload.length % 6 != 0) throw new IOException("Invalid SETTINGS frame");
+        ByteBuffer payload = ByteBuffer.wrap(frame.payload);
+        while (payload.hasRemaining()) {
+            int id = payload.getShort() & 0xFFFF;
+            int value = payload.getInt();
+            if (id == SETTINGS_MAX_CONCURRENT_STREAMS) {
+                streamLock.lock();
+                try {
+                    maxStreams = value < 0 ? Integer.MAX_VALUE : value;
+                    slots.signalAll();
+                } finally {
+                    streamLock.unlock();
+                }
+            } else if (id == SETTINGS_MAX_FRAME_SIZE) {
+                peerFrameSize = value;
+            }
+            // SETTINGS_HEADER_TABLE_SIZE and SETTINGS_INITIAL_WINDOW_SIZE do not matter, the encoder
+            // never indexes and requests have no body
+        }
+        write(SETTINGS, ACK, 0, new byte[0]);
+    }
+
+    private void onGoAway(Frame frame) {
+        ByteBuffer payload = ByteBuffer.wrap(frame.payload);
+        int last = payload.getInt() & 0x7FFFFFFF;
+        int code = payload.getInt();
+        goAway = true;
+        // The streams after the last one were not processed, they can be sent again on a new connection
+        for (Http2Stream stream : streams.values()) {
+            if (stream.getId() > last) {
+                stream.onFailure(new IOException("Stream refused by GOAWAY: error " + code));
+            }
+        }
+        streamLock.lock();
+        try {
+            slots.signalAll();
+        } finally {
+            streamLock.unlock();
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) failure = e;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        for (Http2Stream stream : streams.values()) {
+            stream.onFailure(e);
+        }
+        streamLock.lock();
+        try {
+            slots.signalAll();
+        } finally {
+            streamLock.unlock();
+        }
+    }
+
+    private Frame next() throws IOException {
+        int first;
+        try {
+            first = in.readUnsignedByte();
+        } catch (EOFException e) {
+            return null;
+        }
+        int length = (first << 16) | in.readUnsignedShort();
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int stream = in.readInt() & 0x7FFFFFFF;
+        if (length > FRAME_SIZE) throw new IOException("Frame too large: " + length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(type, flags, stream, payload);
+    }
+
+    private void write(int type, int flags, int stream, byte[] payload) throws IOException {
+        writeLock.lock();
+        try {
+            frame(type, flags, stream, payload, 0, payload.length);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void frame(int type, int flags, int stream, byte[] payload, int off, int length) throws IOException {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        out.write(ByteBuffer.allocate(4).putInt(stream).array());
+        out.write(payload, off, length);
+    }
+
+    private static byte[] increment(int length) {
+        return ByteBuffer.allocate(4).putInt(length).array();
+    }
+
+    private static final class Frame {
+
+        private final int type, flags, stream;
+        private final byte[] payload;
+
+        private Frame(int type, int flags, int stream, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.stream = stream;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.github.sofiman.smartdownloader.http2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A request of an HTTP/2 connection. The reader thread of the connection queues the data frames of the
+ * response, the body stream reads them and credits the windows back so the server keeps sending.
+ */
+public class Http2Stream {
+
+    private final Http2Connection connection;
+    private final int id;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Deque<ByteBuffer> data = new ArrayDeque<>();
+    private List<String[]> headers;
+    private boolean ended, cancelled;
+    private IOException failure;
+    private int unacked, window = Http2Connection.INITIAL_STREAM_WINDOW;
+
+    Http2Stream(Http2Connection connection, int id) {
+        this.connection = connection;
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Waits for the final response headers, informational (1xx) responses are skipped.
+     */
+    public List<String[]> awaitHeaders() throws IOException {
+        lock.lock();
+        try {
+            while (headers == null && failure == null) {
+                changed.await();
+            }
+            if (headers == null) throw failure;
+            return headers;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the response body, which ends with the stream.
+     */
+    public InputStream getInputStream() {
+        return new Body();
+    }
+
+    /**
+     * Returns true once the server sent the whole response.
+     */
+    public boolean isEnded() {
+        lock.lock();
+        try {
+            return ended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the response if it is not over yet: the server is told to stop sending with RST_STREAM,
+     * the rest of the connection is not affected.
+     */
+    public void cancel() {
+        int discarded = 0;
+        boolean reset;
+        lock.lock();
+        try {
+            if (cancelled) return;
+            cancelled = true;
+            reset = !ended && failure == null;
+            for (ByteBuffer chunk : data) discarded += chunk.remaining();
+            data.clear();
+            if (failure == null) failure = new IOException("Stream cancelled");
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        connection.closed(this);
+        try {
+            if (reset) connection.reset(id, Http2Connection.CANCEL);
+            connection.consumed(discarded);
+        } catch (IOException ignored) {
+            // The connection is broken, it fails on its own
+        }
+    }
+
+    /**
+     * Credits the windows with bytes which were read, a WINDOW_UPDATE is only sent once a quarter
+     * of the stream window was read. The window doubles (up to {@link Http2Connection#STREAM_WINDOW})
+     * when nothing is left to read, the window rather than the reader holds the stream back.
+     */
+    void consume(int length) throws IOException {
+        int increment = 0;
+        lock.lock();
+        try {
+            unacked += length;
+            if (unacked >= window / 4 && !ended) {
+                increment = unacked;
+                unacked = 0;
+                if (data.isEmpty() && window < Http2Connection.STREAM_WINDOW) {
+                    int growth = Math.min(window, Http2Connection.STREAM_WINDOW - window);
+                    window += growth;
+                    increment += growth;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        connection.consumed(length);
+        if (increment > 0) connection.windowUpdate(id, increment);
+    }
+
+    void onHeaders(List<String[]> block, boolean end) {
+        lock.lock();
+        try {
+            if (headers == null) {
+                String status = null;
+                for (String[] header : block) {
+                    if (":status".equals(header[0])) status = header[1];
+                }
+                if (status != null && status.startsWith("1") && !end) return;
+                headers = block;
+            }
+            // Headers after the body are trailers, they are not needed
+            if (end) ended = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (end) connection.closed(this);
+    }
+
+    /**
+     * @return false if the stream does not want the data anymore
+     */
+    boolean onData(ByteBuffer chunk, boolean end) {
+        lock.lock();
+        try {
+            if (cancelled) return false;
+            if (chunk.hasRemaining()) data.addLast(chunk);
+            if (end) ended = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (end) connection.closed(this);
+        return true;
+    }
+
+    void onFailure(IOException e) {
+        lock.lock();
+        try {
+            // A response received entirely can still be read after the connection is gone
+            if (ended || failure != null) return;
+            failure = e;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        connection.closed(this);
+    }
+
+    private class Body extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int n;
+            lock.lock();
+            try {
+                while (data.isEmpty() && !ended && failure == null) {
+                    changed.await();
+                }
+                if (data.isEmpty()) {
+                    if (ended && !cancelled) return -1;
+                    throw failure;
+                }
+                ByteBuffer chunk = data.peekFirst();
+                n = Math.min(len, chunk.remaining());
+                chunk.get(b, off, n);
+                if (!chunk.hasRemaining()) data.pollFirst();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                lock.unlock();
+            }
+            consume(n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return data.isEmpty() ? 0 : data.peekFirst().remaining();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            cancel();
+        }
+    }
+}
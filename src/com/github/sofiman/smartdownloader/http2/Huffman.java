@@ -0,0 +1,119 @@
+package com.github.sofiman.smartdownloader.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The static Huffman code of HPACK (RFC 7541, Appendix B). The code is canonical: it is rebuilt from
+ * the length of the code of every symbol, codes of the same length being consecutive in symbol order.
+ */
+final class Huffman {
+
+    private static final int EOS = 256;
+    private static final byte[] LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+    private static final int[] CODES = new int[LENGTHS.length];
+    // The decoding tree: the children of node n are at 2n and 2n + 1, a leaf holds its symbol
+    private static final int[] CHILDREN = new int[LENGTHS.length * 4];
+    private static final int[] SYMBOLS = new int[LENGTHS.length * 2];
+
+    static {
+        Integer[] order = new Integer[LENGTHS.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> LENGTHS[a] != LENGTHS[b] ? LENGTHS[a] - LENGTHS[b] : a - b);
+
+        int code = 0, previous = LENGTHS[order[0]];
+        for (int symbol : order) {
+            code <<= LENGTHS[symbol] - previous;
+            previous = LENGTHS[symbol];
+            CODES[symbol] = code++;
+        }
+
+        Arrays.fill(SYMBOLS, -1);
+        int nodes = 1;
+        for (int symbol = 0; symbol < LENGTHS.length; symbol++) {
+            int node = 0;
+            for (int bit = LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int child = 2 * node + ((CODES[symbol] >>> bit) & 1);
+                if (CHILDREN[child] == 0) CHILDREN[child] = nodes++;
+                node = CHILDREN[child];
+            }
+            SYMBOLS[node] = symbol;
+        }
+    }
+
+    private Huffman() {
+    }
+
+    /**
+     * Decodes a Huffman encoded string. The padding must be the most significant bits of the code of EOS
+     * and shorter than a byte, anything else is a decoding error.
+     */
+    static byte[] decode(byte[] src, int off, int len) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(len * 8 / 5);
+        int node = 0, depth = 0;
+        boolean ones = true;
+        for (int i = off; i < off + len; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                int b = (src[i] >>> bit) & 1;
+                node = CHILDREN[2 * node + b];
+                depth++;
+                ones &= b == 1;
+                int symbol = SYMBOLS[node];
+                if (symbol == EOS) {
+                    throw new IOException("Huffman string contains EOS");
+                } else if (symbol >= 0) {
+                    out.write(symbol);
+                    node = 0;
+                    depth = 0;
+                    ones = true;
+                }
+            }
+        }
+        if (depth > 7 || !ones) {
+            throw new IOException("Invalid Huffman padding");
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the length in bytes of the Huffman encoding of the string.
+     */
+    static int encodedLength(byte[] src) {
+        long bits = 0;
+        for (byte b : src) bits += LENGTHS[b & 0xFF];
+        return (int) ((bits + 7) / 8);
+    }
+
+    /**
+     * Encodes the string, padding the last byte with the most significant bits of EOS.
+     */
+    static byte[] encode(byte[] src) {
+        byte[] out = new byte[encodedLength(src)];
+        long buffer = 0;
+        int bits = 0, pos = 0;
+        for (byte b : src) {
+            int symbol = b & 0xFF;
+            buffer = (buffer << LENGTHS[symbol]) | CODES[symbol];
+            bits += LENGTHS[symbol];
+            while (bits >= 8) {
+                bits -= 8;
+                out[pos++] = (byte) (buffer >>> bits);
+            }
+        }
+        if (bits > 0) {
+            out[pos] = (byte) ((buffer << (8 - bits)) | (0xFF >>> bits));
+        }
+        return out;
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.sofiman.smartdownloader.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in fixed buckets, from 1 ms to 10 s like the default buckets of the Prometheus clients.
+ * Recording a value never locks nor allocates, so it can be done on the download threads.
+ */
+public class Histogram {
+
+    private static final long MILLI = 1000000L;
+    /**
+     * The upper bounds of the buckets in nanoseconds, the last bucket holds everything above.
+     */
+    private static final long[] BOUNDS = {MILLI, 2500000L, 5 * MILLI, 10 * MILLI, 25 * MILLI, 50 * MILLI, 100 * MILLI,
+            250 * MILLI, 500 * MILLI, 1000 * MILLI, 2500 * MILLI, 5000 * MILLI, 10000 * MILLI};
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) return;
+        int i = 0;
+        while (i < BOUNDS.length && nanos > BOUNDS[i]) i++;
+        counts.incrementAndGet(i);
+        sum.add(nanos);
+        long m;
+        while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+        }
+    }
+
+    /**
+     * Returns the number of buckets, including the last one which has no upper bound.
+     */
+    public static int getBucketCount() {
+        return BOUNDS.length + 1;
+    }
+
+    /**
+     * Returns the upper bound of the bucket in nanoseconds, {@link Long#MAX_VALUE} for the last one.
+     */
+    public static long getBound(int bucket) {
+        return bucket < BOUNDS.length ? BOUNDS[bucket] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the number of values recorded in the bucket (not cumulative).
+     */
+    public long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the sum of the recorded values in nanoseconds.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the quantile, or the maximum if it is in the last bucket.
+     */
+    public long getQuantile(double q) {
+        long count = getCount();
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(q * count), seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(BOUNDS[i], getMax());
+        }
+        return getMax();
+    }
+
+    public Summary summarize() {
+        long count = getCount();
+        return new Summary(count, count > 0 ? getSum() / 1e6 / count : 0, getQuantile(0.5) / 1e6,
+                getQuantile(0.99) / 1e6, getMax() / 1e6);
+    }
+
+    /**
+     * The figures of a histogram in milliseconds, shown as a composite value by the MBeans.
+     */
+    public static class Summary {
+
+        private final long count;
+        private final double mean, median, p99, max;
+
+        public Summary(long count, double mean, double median, double p99, double max) {
+            this.count = count;
+            this.mean = mean;
+            this.median = median;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getMedian() {
+            return median;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+    }
+}
@@ -78,6 +78,47 @@ public class Streams {
         copy(in, out, buffer, agent);
     }
 
+    /**
+     * A stream ending after the given number of bytes, without reading any further from the underlying stream.
+     */
+    public static class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        public LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = super.read();
+            if (b != -1) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        /**
+         * Returns the number of bytes left before the limit.
+         */
+        public long getRemaining() {
+            return remaining;
+        }
+    }
+
     public static interface Agent {
 
         void onCopyStarted(long availableBytes) throws IOException;
@@ -21,6 +21,68 @@ public class StringUtils {
         return String.format("%.1f %sB", bytes / Math.pow(unit, exp), pre);
     }
 
+    /**
+     * Formats a duration in milliseconds with its two largest units, like "1h05m" or "42s".
+     */
+    public static String duration(long millis) {
+        return appendDuration(new StringBuilder(), millis).toString();
+    }
+
+    /**
+     * Appends the byte count as {@link #humanReadableByteCount(long, boolean)} formats it, without creating any string.
+     */
+    public static StringBuilder appendByteCount(StringBuilder b, long bytes, boolean si) {
+        int unit = si ? 1000 : 1024;
+        long absBytes = bytes == Long.MIN_VALUE ? Long.MAX_VALUE : Math.abs(bytes);
+        if (absBytes < unit) return b.append(bytes).append(" B");
+        int exp = (int) (Math.log(absBytes) / Math.log(unit));
+        long th = (long) (Math.pow(unit, exp) * (unit - 0.05));
+        if (exp < 6 && absBytes >= th - ((th & 0xfff) == 0xd00 ? 52 : 0)) exp++;
+        if (exp > 4) {
+            bytes /= unit;
+            exp -= 1;
+        }
+        appendDecimal(b, bytes / Math.pow(unit, exp)).append(' ').append((si ? "kMGTPE" : "KMGTPE").charAt(exp - 1));
+        if (!si) b.append('i');
+        return b.append('B');
+    }
+
+    /**
+     * Appends the value with one decimal, like the "%.1f" format does with a dot.
+     */
+    public static StringBuilder appendDecimal(StringBuilder b, double value) {
+        if (value < 0) {
+            b.append('-');
+            value = -value;
+        }
+        long tenths = Math.round(value * 10);
+        return b.append(tenths / 10).append('.').append((char) ('0' + tenths % 10));
+    }
+
+    /**
+     * Appends the bar drawn by {@link #progress(char, char, char, String, float, int)}, without the surrounding format.
+     */
+    public static StringBuilder appendProgress(StringBuilder b, char progress, char background, char pointer, float p, int length) {
+        int idx = Math.round(p * length);
+        for (int i = 0; i < length; i++) {
+            b.append(i > idx ? background : i == idx ? pointer : progress);
+        }
+        return b;
+    }
+
+    /**
+     * Appends the duration as {@link #duration(long)} formats it.
+     */
+    public static StringBuilder appendDuration(StringBuilder b, long millis) {
+        long seconds = (millis + 999) / 1000;
+        if (seconds < 60) return b.append(seconds).append('s');
+        long major = seconds < 3600 ? seconds / 60 : seconds / 3600;
+        long minor = seconds < 3600 ? seconds % 60 : seconds % 3600 / 60;
+        b.append(major).append(seconds < 3600 ? 'm' : 'h');
+        if (minor < 10) b.append('0');
+        return b.append(minor).append(seconds < 3600 ? 's' : 'm');
+    }
+
     public static String randomHex(int size){
         byte[] bytes = new byte[size];
         ThreadLocalRandom.current().nextBytes(bytes);
@@ -34,6 +96,14 @@ public class StringUtils {
         return sb.toString();
     }
 
+    public static byte[] fromHex(String hex){
+        if (hex.length() % 2 != 0) throw new IllegalArgumentException("Invalid hexadecimal string: " + hex);
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        return bytes;
+    }
+
     public static String join(Object[] array, String delimiter){
         StringBuilder b = new StringBuilder();
         for(Object obj : array){
@@ -0,0 +1,66 @@
+package com.github.sofiman.smartdownloader.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads of the downloader, either platform threads or virtual threads. Virtual threads are
+ * only available since Java 21, they are looked up reflectively so the project still runs on Java 8.
+ */
+public class Threads {
+
+    private static final boolean VIRTUAL_SUPPORTED = virtualFactory("probe") != null;
+
+    /**
+     * Returns true if the running JVM can create virtual threads.
+     */
+    public static boolean isVirtualSupported() {
+        return VIRTUAL_SUPPORTED;
+    }
+
+    /**
+     * Returns a factory of virtual threads if asked and supported, of daemon platform threads otherwise.
+     */
+    public static ThreadFactory factory(String name, boolean virtual) {
+        if (virtual && VIRTUAL_SUPPORTED) {
+            ThreadFactory factory = virtualFactory(name);
+            if (factory != null) return factory;
+        }
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Returns an executor starting a new thread for every task, without any bound. Virtual threads are
+     * cheap enough not to be pooled, platform threads are cached instead.
+     */
+    public static ExecutorService perTask(String name, boolean virtual) {
+        if (virtual && VIRTUAL_SUPPORTED) {
+            try {
+                Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) method.invoke(null, factory(name, true));
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+            }
+        }
+        return Executors.newCachedThreadPool(factory(name, false));
+    }
+
+    private static ThreadFactory virtualFactory(String name) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Older JVMs, or Java 19 and 20 without the preview features enabled
+            return null;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import java.util.*;
+
+/**
+ * Shares a global rate between the entries. Every entry draws from the global limiter through a limiter of
+ * its own, whose rate is the allocation of the entry. The allocations are computed again at every interval
+ * from the measured throughputs: an entry which does not use its allocation keeps what it uses and some room
+ * to grow, the rest is split equally between the entries which use all of theirs.
+ */
+public class BandwidthBalancer implements Runnable {
+
+    public static final long INTERVAL = 500;
+    private static final double USED = 0.9;
+    private static final double HEADROOM = 0.25;
+    private static final long MIN_ALLOCATION = 16 * 1024;
+
+    private final Collection<DownloadEntry> entries;
+    private final RateLimiter global;
+    private final Map<DownloadEntry, Long> lastDownloaded;
+    private long lastTime;
+    private volatile boolean cancelled;
+
+    /**
+     * Gives every entry its part of the global limiter, split equally until the first measures.
+     */
+    public BandwidthBalancer(Collection<DownloadEntry> entries, RateLimiter global) {
+        this.entries = entries;
+        this.global = global;
+        this.lastDownloaded = new HashMap<>();
+        Map<DownloadEntry, Double> demands = new HashMap<>();
+        for (DownloadEntry entry : entries) {
+            entry.share(global);
+            lastDownloaded.put(entry, entry.getTracker().getDownloaded());
+            demands.put(entry, cap(entry));
+        }
+        this.lastTime = System.nanoTime();
+        allocate(demands);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!cancelled) {
+                Thread.sleep(INTERVAL);
+                step();
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private synchronized void step() {
+        if (cancelled) return;
+        long now = System.nanoTime();
+        double elapsed = Math.max(1, now - lastTime) / 1e9;
+        lastTime = now;
+        Map<DownloadEntry, Double> demands = new HashMap<>();
+        for (DownloadEntry entry : entries) {
+            DownloadTracker tracker = entry.getTracker();
+            long downloaded = tracker.getDownloaded();
+            double throughput = (downloaded - lastDownloaded.put(entry, downloaded)) / elapsed;
+            double demand;
+            if (tracker.isFinished()) {
+                demand = 0;
+            } else if (throughput < entry.getLimiter().getBytesPerSec() * USED) {
+                // The link (or the server) is slower than the allocation, the rest is better used elsewhere
+                demand = Math.min(cap(entry), throughput * (1 + HEADROOM));
+            } else {
+                demand = cap(entry);
+            }
+            demands.put(entry, demand);
+        }
+        allocate(demands);
+    }
+
+    /**
+     * Max-min fair sharing: the entries are served from the smallest demand, each one gets at most
+     * an equal part of what is left.
+     */
+    private void allocate(Map<DownloadEntry, Double> demands) {
+        List<DownloadEntry> order = new ArrayList<>(demands.keySet());
+        order.sort(Comparator.comparingDouble(demands::get));
+        Map<DownloadEntry, Double> allocations = new HashMap<>();
+        double remaining = global.getBytesPerSec();
+        int n = order.size();
+        for (DownloadEntry entry : order) {
+            double allocation = Math.min(demands.get(entry), remaining / n--);
+            allocations.put(entry, allocation);
+            remaining -= allocation;
+        }
+        // Nobody wants the rest, it is split between the entries which may still grow
+        List<DownloadEntry> growing = new ArrayList<>();
+        for (DownloadEntry entry : order) {
+            if (!entry.getTracker().isFinished() && allocations.get(entry) < cap(entry)) growing.add(entry);
+        }
+        for (DownloadEntry entry : growing) {
+            allocations.put(entry, Math.min(cap(entry), allocations.get(entry) + remaining / growing.size()));
+        }
+        for (DownloadEntry entry : order) {
+            entry.getLimiter().setBytesPerSec(Math.max(MIN_ALLOCATION, Math.round(allocations.get(entry))));
+        }
+    }
+
+    private static double cap(DownloadEntry entry) {
+        return entry.isThrottled() ? entry.getThrottleSpeed() : Double.MAX_VALUE;
+    }
+
+    /**
+     * Stops changing the allocations, they are kept as they are.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+    }
+}
@@ -0,0 +1,334 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import com.github.sofiman.smartdownloader.utils.StringUtils;
+import com.github.sofiman.smartdownloader.utils.Streams;
+import com.github.sofiman.smartdownloader.utils.Threads;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Downloads all the files of a {@link BatchManifest} in one run, over the network interfaces of a single
+ * download map. Every interface opens a fixed number of connections, which take their work from a queue
+ * shared by all the interfaces, so at most that many requests are in flight and an idle connection picks
+ * the next file whichever link it is on.
+ * <p>
+ * The first request of a file asks for its first bytes (up to the split size): the response tells the
+ * length of the file and whether the server accepts ranges, without a HEAD request. The rest of a larger
+ * file is split into ranges of the split size, queued ahead of the next files so every interface works on
+ * it at once, while small files are done in that single request.
+ */
+public class BatchDownloader {
+
+    public static final long DEFAULT_SPLIT_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final BatchManifest manifest;
+    private final BlockingDeque<Task> queue = new LinkedBlockingDeque<>();
+    private final List<Job> failed = new CopyOnWriteArrayList<>();
+    private final LongAdder downloaded = new LongAdder();
+    private CountDownLatch done;
+    private int connections = 4;
+    private long splitSize = DEFAULT_SPLIT_SIZE;
+    private long globalSpeed = -1L;
+    private Downloader.ThreadMode threadMode = Downloader.ThreadMode.PLATFORM;
+
+    public BatchDownloader(BatchManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Sets the number of connections of every network interface, the requests in flight are bounded by it.
+     */
+    public void withConnections(int connections) {
+        if (connections < 1) throw new IllegalArgumentException("connections should be positive");
+        this.connections = connections;
+    }
+
+    /**
+     * Sets the size of the ranges larger files are split into, smaller files are fetched in a single request.
+     */
+    public void withSplitSize(long splitSize) {
+        if (splitSize < 1) throw new IllegalArgumentException("splitSize should be positive");
+        this.splitSize = splitSize;
+    }
+
+    public void withThreadMode(Downloader.ThreadMode threadMode) {
+        this.threadMode = threadMode;
+    }
+
+    /**
+     * Limits the speed of all the network interfaces together, see {@link BandwidthBalancer}.
+     *
+     * @param globalSpeed the limit in bytes per second, -1 for none
+     */
+    public void withGlobalSpeed(long globalSpeed) {
+        this.globalSpeed = globalSpeed;
+    }
+
+    /**
+     * Downloads every file of the manifest.
+     *
+     * @return false if any of them failed
+     */
+    public boolean download(DownloadMap map) throws InterruptedException {
+        if (!map.isLocked()) throw new IllegalArgumentException();
+        List<BatchManifest.Item> items = manifest.getItems();
+        done = new CountDownLatch(items.size());
+        for (BatchManifest.Item item : items) {
+            queue.add(new Task(new Job(item), null));
+        }
+
+        System.out.println("Downloading " + manifest + " with " + connections + " connections on every network interface");
+        BandwidthBalancer balancer = null;
+        if (globalSpeed > 0) {
+            balancer = new BandwidthBalancer(map.getEntries().values(), new RateLimiter(globalSpeed));
+            Threads.factory("balancer", threadMode == Downloader.ThreadMode.VIRTUAL).newThread(balancer).start();
+            System.out.println("Sharing " + StringUtils.humanReadableByteCount(globalSpeed, true) +
+                    "/s between the network interfaces");
+        }
+        long start = System.nanoTime();
+        ExecutorService service = Executors.newFixedThreadPool(connections * map.size(),
+                Threads.factory("batch", threadMode == Downloader.ThreadMode.VIRTUAL));
+        try {
+            // The connections of the interfaces are interleaved, so they all start right away
+            for (int i = 0; i < connections; i++) {
+                for (DownloadEntry dwe : map.getEntries().values()) {
+                    dwe.getTracker().connect();
+                    service.submit(() -> work(dwe));
+                }
+            }
+            done.await();
+        } finally {
+            if (balancer != null) {
+                balancer.cancel();
+            }
+            service.shutdownNow();
+            ConnectionPool.shared().close();
+        }
+        report(map, System.nanoTime() - start);
+        return failed.isEmpty();
+    }
+
+    private void work(DownloadEntry dwe) {
+        try {
+            while (done.getCount() > 0) {
+                Task task = queue.pollFirst(100, TimeUnit.MILLISECONDS);
+                if (task == null) continue;
+                Job job = task.job;
+                try {
+                    // The other ranges of a failed file are dropped
+                    if (job.failure == null) {
+                        if (task.segment == null) {
+                            first(dwe, job);
+                        } else {
+                            fetch(dwe, job, task.segment);
+                        }
+                    }
+                } catch (IOException e) {
+                    job.failure = e.getMessage();
+                }
+                complete(job);
+            }
+        } catch (InterruptedException ignored) {
+        } finally {
+            dwe.getTracker().disconnect();
+        }
+    }
+
+    /**
+     * Fetches the start of the file, then queues the ranges of what remains.
+     */
+    private void first(DownloadEntry dwe, Job job) throws IOException {
+        int attempts = 0;
+        while (true) {
+            job.open();
+            // The segment has no end, the whole body is written if the server ignores the range
+            Segment segment = new Segment(0, Long.MAX_VALUE - 1);
+            Request request = request(dwe, job, segment);
+            request.header("Range", "bytes=0-" + (splitSize - 1));
+            IOException error = null;
+            try {
+                request.send();
+            } catch (IOException e) {
+                error = e;
+            }
+            long total = request.getRangeTotal();
+            if (error == null && total >= 0) {
+                job.file.setLength(total);
+                List<Segment> ranges = new ArrayList<>();
+                for (long from = segment.getCommitted(); from < total; from += splitSize) {
+                    ranges.add(new Segment(from, Math.min(from + splitSize, total) - 1));
+                }
+                job.pending.addAndGet(ranges.size());
+                for (int i = ranges.size() - 1; i >= 0; i--) {
+                    queue.addFirst(new Task(job, ranges.get(i)));
+                }
+                return;
+            }
+            if (error == null && request.getStatusCode() == 200 && request.isComplete()) {
+                return;
+            }
+            if (++attempts >= MAX_ATTEMPTS) {
+                throw error != null ? error : new IOException(request.getStatusCode() == 206 ?
+                        "The server did not give the length of the file" :
+                        "The download was interrupted and the server does not accept ranges");
+            }
+            dwe.getMetrics().onRetry();
+        }
+    }
+
+    /**
+     * Fetches the range until it is complete, resuming where the previous attempt stopped.
+     */
+    private void fetch(DownloadEntry dwe, Job job, Segment segment) throws IOException {
+        int attempts = 0;
+        boolean retry = false;
+        while (!segment.isComplete()) {
+            long committed = segment.getCommitted();
+            segment.rewind();
+            if (retry) {
+                dwe.getMetrics().onRetry();
+            }
+            retry = true;
+            Request request = request(dwe, job, segment);
+            request.header("Range", segment.toRange().toString());
+            IOException error = null;
+            try {
+                request.send();
+            } catch (IOException e) {
+                error = e;
+            }
+            if (segment.getCommitted() > committed) {
+                attempts = 0;
+            } else if (++attempts >= MAX_ATTEMPTS) {
+                throw error != null ? error : new IOException("The range " + segment + " failed " + MAX_ATTEMPTS + " times");
+            }
+        }
+    }
+
+    private Request request(DownloadEntry dwe, Job job, Segment segment) {
+        return new Request(job.item.getUrl())
+                .netInterface(dwe.getNetworkInterface())
+                .out(job.channel, segment).tracker(dwe.getTracker())
+                .limiter(dwe.getLimiter()).metrics(dwe.getMetrics());
+    }
+
+    /**
+     * Ends a task of the file, the last one closes and checks it.
+     */
+    private void complete(Job job) {
+        if (job.pending.decrementAndGet() > 0) return;
+        long length = -1;
+        try {
+            if (job.file != null) {
+                length = job.channel.size();
+                job.file.close();
+            }
+            if (job.failure == null && job.item.getHash() != null) {
+                String hash = checksum(job.item.getOutput(), job.item.getHashType());
+                if (!hash.equals(job.item.getHash())) {
+                    job.failure = "Checksum mismatch (" + job.item.getHashType() + "): calculated " + hash;
+                }
+            }
+        } catch (IOException | NoSuchAlgorithmException e) {
+            if (job.failure == null) job.failure = e.getMessage();
+        }
+        float time = job.start > 0 ? (System.nanoTime() - job.start) / 1e9f : 0;
+        if (job.failure == null) {
+            downloaded.add(length);
+            System.out.println("+ " + job.item.getOutput().getPath() + " (" +
+                    StringUtils.humanReadableByteCount(length, true) + " in " + time + "s)");
+        } else {
+            // Without a journal, what was received can not be resumed
+            job.item.getOutput().delete();
+            failed.add(job);
+            System.out.println("x " + job.item.getOutput().getPath() + ": " + job.failure);
+        }
+        done.countDown();
+    }
+
+    private static String checksum(File file, String algorithm) throws IOException, NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance(algorithm);
+        try (InputStream is = new FileInputStream(file)) {
+            Streams.copy(is, md, new byte[8192], Streams.EMPTY_AGENT);
+        }
+        return StringUtils.toHex(md.digest()).toLowerCase();
+    }
+
+    private void report(DownloadMap map, long nanos) {
+        float seconds = nanos / 1e9f;
+        long total = downloaded.sum();
+        System.out.println("\nDownloaded " + (manifest.size() - failed.size()) + " of " + manifest.size() + " files (" +
+                StringUtils.humanReadableByteCount(total, true) + ") in " + seconds + "s: " +
+                StringUtils.humanReadableByteCount((long) (total / seconds), true) + "/s");
+        for (Map.Entry<String, DownloadEntry> entry : map.getEntries().entrySet()) {
+            long bytes = entry.getValue().getTracker().getDownloaded();
+            System.out.println("* " + entry.getKey() + ": " + StringUtils.humanReadableByteCount(bytes, true) +
+                    " at " + StringUtils.humanReadableByteCount((long) (bytes / seconds), true) + "/s, " +
+                    entry.getValue().getMetrics().getRequests() + " requests, " +
+                    entry.getValue().getMetrics().getRetries() + " retries");
+        }
+        if (!failed.isEmpty()) {
+            System.out.println("Failed downloads:");
+            for (Job job : failed) {
+                System.out.println("- " + job.item.getUrl() + ": " + job.failure);
+            }
+        }
+    }
+
+    /**
+     * A file of the manifest, complete once its last task is done.
+     */
+    private static class Job {
+
+        private final BatchManifest.Item item;
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private RandomAccessFile file;
+        private FileChannel channel;
+        private volatile String failure;
+        private volatile long start;
+
+        private Job(BatchManifest.Item item) {
+            this.item = item;
+        }
+
+        /**
+         * Opens the output, emptied of a previous attempt.
+         */
+        private void open() throws IOException {
+            if (file == null) {
+                start = System.nanoTime();
+                File parent = item.getOutput().getAbsoluteFile().getParentFile();
+                if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Could not create the directory " + parent);
+                }
+                file = new RandomAccessFile(item.getOutput(), "rw");
+                channel = file.getChannel();
+            }
+            file.setLength(0);
+        }
+    }
+
+    /**
+     * The start of a file when the segment is null, a range of it otherwise.
+     */
+    private static class Task {
+
+        private final Job job;
+        private final Segment segment;
+
+        private Task(Job job, Segment segment) {
+            this.job = job;
+            this.segment = segment;
+        }
+    }
+}
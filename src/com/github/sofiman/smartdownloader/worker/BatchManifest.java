@@ -0,0 +1,125 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lists the files of a batch download, one per line: the URL, the output path and optionally the expected
+ * hash of the file followed by its algorithm:
+ * <pre>
+ * https://example.com/a.iso a.iso
+ * https://example.com/b.tar.gz out/b.tar.gz 9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08 SHA-256
+ * </pre>
+ * Without an algorithm, it is guessed from the length of the hash (MD5, SHA-1, SHA-256 or SHA-512).
+ * Relative outputs are resolved from the directory of the manifest. Empty lines and lines starting with #
+ * are ignored.
+ */
+public class BatchManifest {
+
+    private final List<Item> items;
+
+    public BatchManifest() {
+        this.items = new ArrayList<>();
+    }
+
+    public static BatchManifest load(File file) throws IOException {
+        BatchManifest manifest = new BatchManifest();
+        File directory = file.getAbsoluteFile().getParentFile();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] parts = line.split("\\s+");
+                if (parts.length < 2 || parts.length > 4) {
+                    throw new IOException("Invalid batch manifest line " + number + ": " + line);
+                }
+                File output = new File(parts[1]);
+                if (!output.isAbsolute()) output = new File(directory, parts[1]);
+                String hash = parts.length > 2 ? parts[2].toLowerCase() : null;
+                String hashType = parts.length > 3 ? parts[3] : hash != null ? guessAlgorithm(hash) : null;
+                if (hash != null && hashType == null) {
+                    throw new IOException("Unknown hash algorithm on line " + number + ", it must follow the hash");
+                }
+                manifest.add(new Item(parts[0], output, hash, hashType));
+            }
+        }
+        if (manifest.items.isEmpty()) throw new IOException("Empty batch manifest");
+        return manifest;
+    }
+
+    private static String guessAlgorithm(String hash) {
+        switch (hash.length()) {
+            case 32:
+                return "MD5";
+            case 40:
+                return "SHA-1";
+            case 64:
+                return "SHA-256";
+            case 128:
+                return "SHA-512";
+            default:
+                return null;
+        }
+    }
+
+    public void add(Item item) {
+        items.add(item);
+    }
+
+    public List<Item> getItems() {
+        return Collections.unmodifiableList(items);
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    @Override
+    public String toString() {
+        return items.size() + " files";
+    }
+
+    public static class Item {
+
+        private final String url;
+        private final File output;
+        private final String hash, hashType;
+
+        public Item(String url, File output, String hash, String hashType) {
+            this.url = url;
+            this.output = output;
+            this.hash = hash;
+            this.hashType = hashType;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public File getOutput() {
+            return output;
+        }
+
+        /**
+         * Returns the expected hash in lowercase hexadecimal, null if the file is not checked.
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        public String getHashType() {
+            return hashType;
+        }
+
+        @Override
+        public String toString() {
+            return url + " -> " + output.getPath();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import java.io.IOException;
+
+/**
+ * Follows the framing of a chunked body one byte at a time, like {@link HttpResponseParser} does for the head.
+ * The caller feeds the bytes of the framing to {@link #frame(byte)} until a chunk starts, then takes the data
+ * of the chunk as it is and reports it with {@link #consume(long)}. The extensions and the trailers are skipped.
+ */
+public class ChunkedDecoder {
+
+    private static final int SIZE = 0, EXTENSION = 1, DATA = 2, DATA_END = 3, TRAILER_START = 4, TRAILER = 5,
+            END = 6;
+    private static final int MAX_DIGITS = 15;
+
+    private int state, digits;
+    private long remaining;
+
+    public ChunkedDecoder() {
+        reset();
+    }
+
+    /**
+     * Forgets the previous body.
+     */
+    public void reset() {
+        state = SIZE;
+        digits = 0;
+        remaining = 0;
+    }
+
+    /**
+     * Reads a byte of the framing, only allowed while no data is expected.
+     */
+    public void frame(byte b) throws IOException {
+        switch (state) {
+            case SIZE:
+                int digit = Character.digit((char) (b & 0xFF), 16);
+                if (digit >= 0) {
+                    if (++digits > MAX_DIGITS) throw new IOException("Chunk size too large");
+                    remaining = remaining << 4 | digit;
+                    return;
+                }
+                if (digits == 0) throw new IOException("Invalid chunk size");
+                // The size ends with the extensions, or with the line
+                state = EXTENSION;
+                endLine(b);
+                return;
+            case EXTENSION:
+                endLine(b);
+                return;
+            case DATA_END:
+                if (b == '\n') {
+                    state = SIZE;
+                    digits = 0;
+                } else if (b != '\r') {
+                    throw new IOException("Missing line break after chunk data");
+                }
+                return;
+            case TRAILER_START:
+                if (b == '\n') {
+                    state = END;
+                } else if (b != '\r') {
+                    state = TRAILER;
+                }
+                return;
+            case TRAILER:
+                if (b == '\n') state = TRAILER_START;
+                return;
+            default:
+                throw new IllegalStateException("No framing expected");
+        }
+    }
+
+    /**
+     * Expects the data of the chunk, or the trailer after the last chunk, once the size line ends.
+     */
+    private void endLine(byte b) {
+        if (b == '\n') {
+            state = remaining > 0 ? DATA : TRAILER_START;
+        }
+    }
+
+    /**
+     * Returns the number of data bytes left in the current chunk, 0 while reading the framing.
+     */
+    public long getRemaining() {
+        return state == DATA ? remaining : 0;
+    }
+
+    /**
+     * Records data bytes of the current chunk which were taken by the caller.
+     */
+    public void consume(long n) {
+        if (n > getRemaining()) throw new IllegalArgumentException("More bytes than the chunk holds");
+        remaining -= n;
+        if (remaining == 0) state = DATA_END;
+    }
+
+    /**
+     * Returns true once the last chunk and the trailers were read, the connection holds nothing more of the body.
+     */
+    public boolean isEnded() {
+        return state == END;
+    }
+}
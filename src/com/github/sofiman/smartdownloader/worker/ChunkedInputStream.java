@@ -0,0 +1,87 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+
+/**
+ * Decodes a chunked body on the fly. The framing is read by small blocks and the bytes read past it are
+ * pushed back, so the data of a chunk is read straight into the buffer of the caller and nothing is read
+ * beyond the end of the body.
+ */
+public class ChunkedInputStream extends FilterInputStream {
+
+    /**
+     * The number of bytes read at once for the framing, the stream of the connection must be able to push them back.
+     */
+    public static final int FRAME_READ = 128;
+
+    private final PushbackInputStream pushback;
+    private final ChunkedDecoder decoder = new ChunkedDecoder();
+    private final byte[] frame = new byte[FRAME_READ];
+
+    public ChunkedInputStream(PushbackInputStream in) {
+        super(in);
+        this.pushback = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!nextChunk()) return -1;
+        int n = in.read(b, off, (int) Math.min(len, decoder.getRemaining()));
+        if (n == -1) throw new EOFException("Connection closed in the middle of a chunk");
+        decoder.consume(n);
+        return n;
+    }
+
+    /**
+     * Reads the framing up to the data of the next chunk.
+     *
+     * @return false if the body ended
+     */
+    private boolean nextChunk() throws IOException {
+        while (decoder.getRemaining() == 0) {
+            if (decoder.isEnded()) return false;
+            int len = in.read(frame, 0, frame.length);
+            if (len == -1) throw new EOFException("Connection closed before the last chunk");
+            int i = 0;
+            while (i < len && decoder.getRemaining() == 0 && !decoder.isEnded()) {
+                decoder.frame(frame[i++]);
+            }
+            if (i < len) pushback.unread(frame, i, len - i);
+        }
+        return true;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), decoder.getRemaining());
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] b = new byte[(int) Math.min(n, 2048)];
+        int len = read(b, 0, b.length);
+        return Math.max(0, len);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Returns true once the whole body was read, including the last chunk and the trailers.
+     */
+    public boolean isEnded() {
+        return decoder.isEnded();
+    }
+}
@@ -0,0 +1,199 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.*;
+
+/**
+ * Keeps the sockets of finished requests open so the next request to the same host, from the same
+ * local address, skips the TCP handshake and starts with a warm congestion window. Sockets idle for
+ * longer than the timeout are closed, since the server has probably dropped them already.
+ * <p>
+ * Secure sockets all come from the same TLS context, whose session cache is shared by every connection
+ * of the pool: only the first connection to a host pays the full handshake, the others resume its session.
+ */
+public class ConnectionPool {
+
+    public static final long DEFAULT_IDLE_TIMEOUT = 15000;
+    private static final int SESSION_CACHE_SIZE = 256;
+    private static final int SESSION_TIMEOUT = 3600;
+    private static final ConnectionPool SHARED = new ConnectionPool(DEFAULT_IDLE_TIMEOUT);
+
+    private final long idleTimeout;
+    private final Map<Route, Deque<Idle>> idle;
+    private SSLContext tls;
+
+    public ConnectionPool(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        this.idle = new HashMap<>();
+    }
+
+    /**
+     * Returns the pool shared by every request which was not given its own.
+     */
+    public static ConnectionPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns an idle socket of the route, or null if there is none.
+     */
+    public synchronized Socket acquire(Route route) {
+        evict();
+        Deque<Idle> sockets = idle.get(route);
+        Idle connection;
+        while (sockets != null && (connection = sockets.pollFirst()) != null) {
+            if (!connection.socket.isClosed() && !connection.socket.isInputShutdown()) {
+                return connection.socket;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens a new socket bound to the local address of the route and connected to its host,
+     * with TLS on top of it for https.
+     */
+    public Socket connect(Route route) throws IOException {
+        Socket socket = new Socket();
+        try {
+            if (route.local != null) {
+                socket.bind(new InetSocketAddress(route.local, 0));
+            }
+            socket.connect(new InetSocketAddress(route.address, route.port));
+            if (!route.secure) return socket;
+
+            // The TLS socket is layered over the bound socket, so it still goes through the chosen interface
+            SSLSocket ssl = (SSLSocket) tls().getSocketFactory().createSocket(socket, route.host, route.port, true);
+            SSLParameters parameters = ssl.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            ssl.setSSLParameters(parameters);
+            ssl.startHandshake();
+            return ssl;
+        } catch (IOException e) {
+            close(socket);
+            throw e;
+        }
+    }
+
+    /**
+     * Gives back a socket whose last response was read entirely, so it can be used by the next request.
+     */
+    public synchronized void release(Route route, Socket socket) {
+        evict();
+        // The most recently used sockets are handed out first, they are the least likely to be dropped
+        idle.computeIfAbsent(route, k -> new ArrayDeque<>())
+                .addFirst(new Idle(socket, System.currentTimeMillis()));
+    }
+
+    /**
+     * Closes every idle socket.
+     */
+    public synchronized void close() {
+        for (Deque<Idle> sockets : idle.values()) {
+            for (Idle connection : sockets) {
+                close(connection.socket);
+            }
+        }
+        idle.clear();
+    }
+
+    private synchronized SSLContext tls() throws IOException {
+        if (tls == null) {
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+                context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+                context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+                tls = context;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not initialize TLS", e);
+            }
+        }
+        return tls;
+    }
+
+    private void evict() {
+        long limit = System.currentTimeMillis() - idleTimeout;
+        Iterator<Deque<Idle>> it = idle.values().iterator();
+        while (it.hasNext()) {
+            Deque<Idle> sockets = it.next();
+            while (!sockets.isEmpty() && sockets.peekLast().since < limit) {
+                close(sockets.pollLast().socket);
+            }
+            if (sockets.isEmpty()) it.remove();
+        }
+    }
+
+    static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Where a connection goes: from a local address (or any if null) to a host, with or without TLS.
+     */
+    public static final class Route {
+
+        private final InetAddress local, address;
+        private final String host;
+        private final int port;
+        private final boolean secure;
+
+        public Route(InetAddress local, URL url, InetAddress address) {
+            this.local = local;
+            this.address = address;
+            this.host = url.getHost();
+            this.port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+            this.secure = "https".equalsIgnoreCase(url.getProtocol());
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public boolean isSecure() {
+            return secure;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Route)) return false;
+            Route route = (Route) o;
+            return port == route.port && secure == route.secure && Objects.equals(local, route.local) &&
+                    address.equals(route.address) && host.equalsIgnoreCase(route.host);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(local, address, host.toLowerCase(), port, secure);
+        }
+
+        @Override
+        public String toString() {
+            return (local != null ? local.getHostAddress() : "*") + " -> " + (secure ? "https://" : "http://") +
+                    host + ":" + port;
+        }
+    }
+
+    private static final class Idle {
+
+        private final Socket socket;
+        private final long since;
+
+        private Idle(Socket socket, long since) {
+            this.socket = socket;
+            this.since = since;
+        }
+    }
+}
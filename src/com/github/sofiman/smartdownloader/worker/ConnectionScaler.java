@@ -0,0 +1,78 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Opens more connections on a network interface while its throughput keeps rising. A single TCP stream
+ * rarely fills a link with a high latency and servers often limit the speed of each connection, so every
+ * entry gets a new connection as long as the previous one raised its throughput by more than the gain.
+ * Once the throughput levels off (or the maximum is reached) the entry keeps its connections. A new
+ * connection takes its work from the bytes no other connection requested yet, none is fetched twice.
+ */
+public class ConnectionScaler implements Runnable {
+
+    public static final long INTERVAL = 2000;
+    private static final double GAIN = 0.1;
+
+    private final Collection<DownloadEntry> entries;
+    private final int maxConnections;
+    private final Consumer<DownloadEntry> opener;
+    private final Map<DownloadEntry, Long> lastDownloaded;
+    private final Map<DownloadEntry, Double> best;
+    private volatile boolean cancelled;
+
+    /**
+     * @param maxConnections the maximum number of connections of an entry
+     * @param opener         opens a new connection for the given entry
+     */
+    public ConnectionScaler(Collection<DownloadEntry> entries, int maxConnections, Consumer<DownloadEntry> opener) {
+        this.entries = entries;
+        this.maxConnections = maxConnections;
+        this.opener = opener;
+        this.lastDownloaded = new HashMap<>();
+        this.best = new HashMap<>();
+    }
+
+    @Override
+    public void run() {
+        for (DownloadEntry entry : entries) {
+            // A throttled entry can not go any faster
+            if (!entry.isThrottled()) {
+                lastDownloaded.put(entry, entry.getTracker().getDownloaded());
+                best.put(entry, 0d);
+            }
+        }
+        try {
+            while (!cancelled && !best.isEmpty()) {
+                Thread.sleep(INTERVAL);
+                step();
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private synchronized void step() {
+        for (DownloadEntry entry : entries) {
+            if (cancelled || !best.containsKey(entry)) continue;
+            DownloadTracker tracker = entry.getTracker();
+            long downloaded = tracker.getDownloaded();
+            double throughput = (downloaded - lastDownloaded.put(entry, downloaded)) * 1000d / INTERVAL;
+            if (tracker.isFinished() || tracker.getConnections() >= maxConnections || throughput <= best.get(entry) * (1 + GAIN)) {
+                best.remove(entry);
+                continue;
+            }
+            best.put(entry, throughput);
+            opener.accept(entry);
+        }
+    }
+
+    /**
+     * Stops opening connections, no connection is opened once this method returned.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+    }
+}
@@ -0,0 +1,50 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import com.github.sofiman.smartdownloader.utils.StringUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Computes the checksums of the output file with any number of algorithms while it is downloaded.
+ */
+public class DigestStage extends PrefixStage {
+
+    private final Map<String, MessageDigest> digests;
+    private final Map<String, String> results;
+
+    public DigestStage(FileChannel channel, LongSupplier frontier, long length, String... algorithms) throws NoSuchAlgorithmException {
+        super(channel, frontier, length);
+        this.digests = new LinkedHashMap<>();
+        this.results = new LinkedHashMap<>();
+        for (String algorithm : algorithms) {
+            digests.put(algorithm, MessageDigest.getInstance(algorithm));
+        }
+    }
+
+    @Override
+    protected void consume(ByteBuffer buffer) {
+        for (MessageDigest digest : digests.values()) {
+            digest.update(buffer.duplicate());
+        }
+    }
+
+    @Override
+    protected void finish() {
+        for (Map.Entry<String, MessageDigest> digest : digests.entrySet()) {
+            results.put(digest.getKey(), StringUtils.toHex(digest.getValue().digest()).toLowerCase());
+        }
+    }
+
+    /**
+     * Returns the hexadecimal checksum of every algorithm, once the stage finished.
+     */
+    public Map<String, String> getResults() {
+        return results;
+    }
+}
@@ -0,0 +1,386 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import com.github.sofiman.smartdownloader.utils.StringUtils;
+import com.github.sofiman.smartdownloader.utils.Threads;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the downloads submitted to a local HTTP API in a single process, which stays up between them: the
+ * JVM is already warm and the idle connections of a download are used again by the next ones.
+ * <pre>
+ * POST   /jobs?url=&lt;url&gt;&amp;output=&lt;path&gt;[&amp;priority=&lt;n&gt;][&amp;hash=&lt;hash&gt;&amp;hashType=&lt;algorithm&gt;]
+ * GET    /jobs                    lists the jobs, one per line
+ * GET    /jobs/&lt;id&gt;               shows a job
+ * POST   /jobs/&lt;id&gt;?priority=&lt;n&gt;  changes the priority of a queued job
+ * DELETE /jobs/&lt;id&gt;               cancels a job
+ * POST   /shutdown                cancels every job and stops the daemon
+ * </pre>
+ * The parameters are given in the query or as a form in the body. The queued jobs with the highest priority
+ * start first, in the order they were submitted. A running job which is cancelled keeps its journal, it can
+ * be submitted again to resume it. The finished jobs are listed for an hour, and only the last 100 of them.
+ */
+public class DownloadDaemon implements AutoCloseable {
+
+    /**
+     * Queued once per runner when the daemon stops, after the other jobs were cancelled.
+     */
+    private static final Job STOP = new Job(Long.MAX_VALUE, null, null, null, null, 0);
+    private static final int MAX_FINISHED = 100;
+    private static final long FINISHED_TTL = 60 * 60 * 1000;
+
+    private final InetSocketAddress address;
+    private final DownloadMap map;
+    private final Downloader template;
+    private final int parallel;
+    private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>(16,
+            Comparator.comparingInt((Job job) -> -job.priority).thenComparingLong(job -> job.id));
+    private final Map<Long, Job> jobs = new ConcurrentSkipListMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private HttpServer server;
+    private ExecutorService runners;
+
+    /**
+     * @param map      the network interfaces of every download, copied for each job
+     * @param template the settings of every download, copied for each job
+     * @param parallel the number of jobs running at once
+     */
+    public DownloadDaemon(InetSocketAddress address, DownloadMap map, Downloader template, int parallel) {
+        if (parallel < 1) throw new IllegalArgumentException("parallel should be positive");
+        this.address = address;
+        this.map = map;
+        this.template = template;
+        this.parallel = parallel;
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext("/", exchange -> {
+            try {
+                handle(exchange);
+            } catch (RuntimeException e) {
+                respond(exchange, 400, e.getMessage() + "\n");
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        runners = Executors.newFixedThreadPool(parallel, Threads.factory("job", false));
+        for (int i = 0; i < parallel; i++) {
+            runners.submit(this::run);
+        }
+        System.out.println("Waiting for jobs on http://" + address.getHostString() + ":" +
+                server.getAddress().getPort() + "/jobs");
+    }
+
+    /**
+     * Waits until the daemon is stopped.
+     */
+    public void await() throws InterruptedException {
+        stopped.await();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Job job = queue.take();
+                if (job == STOP) return;
+                execute(job);
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private void execute(Job job) {
+        Downloader downloader = template.copy(job.url, job.output);
+        downloader.withPersistentConnections(true);
+        if (job.hash != null) {
+            downloader.withChecksum(job.hash, job.hashType);
+        }
+        DownloadMap map = this.map.copy().build();
+        synchronized (job) {
+            if (job.state != State.QUEUED) return;
+            job.downloader = downloader;
+            job.map = map;
+            job.state = State.RUNNING;
+            job.started = System.currentTimeMillis();
+        }
+        System.out.println("Starting job " + job.id + ": " + job.url);
+        State state;
+        try {
+            downloader.download(map);
+            state = State.DONE;
+        } catch (Exception e) {
+            state = downloader.isCancelled() ? State.CANCELLED : State.FAILED;
+            job.message = e.getMessage();
+        }
+        job.ended = System.currentTimeMillis();
+        job.state = state;
+        System.out.println("Job " + job.id + " " + state.name().toLowerCase() +
+                (job.message != null ? ": " + job.message : ""));
+        prune();
+    }
+
+    /**
+     * Forgets the finished jobs which are too old or too many, since each one still holds its downloader.
+     */
+    private void prune() {
+        long now = System.currentTimeMillis();
+        List<Job> finished = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            if (job.ended > 0) finished.add(job);
+        }
+        finished.sort(Comparator.comparingLong(job -> job.ended));
+        for (int i = 0; i < finished.size(); i++) {
+            Job job = finished.get(i);
+            if (finished.size() - i > MAX_FINISHED || now - job.ended > FINISHED_TTL) {
+                jobs.remove(job.id);
+            }
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> params = params(exchange);
+        prune();
+        if (path.equals("/jobs") || path.equals("/jobs/")) {
+            if (method.equals("POST")) {
+                Job job = submit(params);
+                respond(exchange, 201, job.id + "\n");
+            } else if (method.equals("GET")) {
+                StringBuilder b = new StringBuilder();
+                for (Job job : jobs.values()) {
+                    line(b, job).append('\n');
+                }
+                respond(exchange, 200, b.toString());
+            } else {
+                respond(exchange, 405, "Method not allowed\n");
+            }
+        } else if (path.startsWith("/jobs/")) {
+            Job job;
+            try {
+                job = jobs.get(Long.parseLong(path.substring(6)));
+            } catch (NumberFormatException e) {
+                job = null;
+            }
+            if (job == null) {
+                respond(exchange, 404, "Unknown job\n");
+            } else if (method.equals("GET")) {
+                respond(exchange, 200, details(job));
+            } else if (method.equals("DELETE")) {
+                cancel(job);
+                respond(exchange, 200, line(new StringBuilder(), job).append('\n').toString());
+            } else if (method.equals("POST") && params.containsKey("priority")) {
+                prioritize(job, Integer.parseInt(params.get("priority")));
+                respond(exchange, 200, line(new StringBuilder(), job).append('\n').toString());
+            } else {
+                respond(exchange, 405, "Method not allowed\n");
+            }
+        } else if (path.equals("/shutdown") && method.equals("POST")) {
+            respond(exchange, 200, "Stopping\n");
+            Threads.factory("shutdown", false).newThread(this::close).start();
+        } else {
+            respond(exchange, 404, "Not found\n");
+        }
+    }
+
+    private Job submit(Map<String, String> params) {
+        String url = params.get("url"), output = params.get("output");
+        if (url == null || output == null) throw new IllegalArgumentException("Missing url or output");
+        String hash = params.get("hash"), hashType = params.get("hashType");
+        if (hash != null && hashType == null) throw new IllegalArgumentException("Missing hashType");
+        int priority = params.containsKey("priority") ? Integer.parseInt(params.get("priority")) : 0;
+        Job job = new Job(ids.incrementAndGet(), url, new File(output), hash, hashType, priority);
+        jobs.put(job.id, job);
+        queue.add(job);
+        return job;
+    }
+
+    /**
+     * Removes a queued job, or stops a running one.
+     */
+    private void cancel(Job job) {
+        Downloader downloader;
+        synchronized (job) {
+            if (job.state == State.QUEUED) {
+                queue.remove(job);
+                job.ended = System.currentTimeMillis();
+                job.state = State.CANCELLED;
+                return;
+            }
+            downloader = job.downloader;
+        }
+        if (job.state == State.RUNNING && downloader != null) {
+            downloader.cancel();
+        }
+    }
+
+    /**
+     * Changes the priority of a job, which only moves it in the queue if it did not start yet.
+     */
+    private void prioritize(Job job, int priority) {
+        synchronized (job) {
+            if (job.state == State.QUEUED && queue.remove(job)) {
+                job.priority = priority;
+                queue.add(job);
+            } else {
+                job.priority = priority;
+            }
+        }
+    }
+
+    private static StringBuilder line(StringBuilder b, Job job) {
+        b.append(job.id).append(' ').append(job.state.name().toLowerCase()).append(" priority=").append(job.priority);
+        DownloadMap map = job.map;
+        if (map != null) {
+            float progress = 0;
+            long downloaded = 0, speed = 0, assigned = 0;
+            for (DownloadEntry entry : map.getEntries().values()) {
+                progress += entry.getTracker().getProgress();
+                assigned += entry.getTracker().getAssigned();
+                downloaded += entry.getTracker().getDownloaded();
+                if (job.state == State.RUNNING) speed += entry.getTracker().getSpeed();
+            }
+            b.append(' ');
+            // A cancelled download gives up what it had left, its progress would always read 100%, and a
+            // streamed download has no length to measure it against
+            if ((job.state == State.RUNNING || job.state == State.DONE) && assigned > 0) {
+                StringUtils.appendDecimal(b, progress * 100f / map.size()).append("% ");
+            }
+            StringUtils.appendByteCount(b, downloaded, true);
+            if (job.state == State.RUNNING) {
+                StringUtils.appendByteCount(b.append(" at "), speed, true).append("/s");
+            }
+        }
+        return b.append(' ').append(job.output.getPath());
+    }
+
+    private static String details(Job job) {
+        StringBuilder b = new StringBuilder();
+        line(b.append("job: "), job).append('\n');
+        b.append("url: ").append(job.url).append('\n');
+        b.append("output: ").append(job.output.getAbsolutePath()).append('\n');
+        if (job.started > 0) {
+            long end = job.ended > 0 ? job.ended : System.currentTimeMillis();
+            b.append("time: ").append((end - job.started) / 1000f).append("s\n");
+        }
+        DownloadMap map = job.map;
+        if (map != null) {
+            for (Map.Entry<String, DownloadEntry> entry : map.getEntries().entrySet()) {
+                DownloadTracker tracker = entry.getValue().getTracker();
+                b.append("interface ").append(entry.getKey()).append(": ");
+                StringUtils.appendByteCount(b, tracker.getDownloaded(), true).append(", ");
+                StringUtils.appendByteCount(b, tracker.getAverageSpeed(), true).append("/s average\n");
+            }
+        }
+        if (job.message != null) {
+            b.append("message: ").append(job.message).append('\n');
+        }
+        return b.toString();
+    }
+
+    /**
+     * Reads the parameters of the query, and of the body if it is a form.
+     */
+    private static Map<String, String> params(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parse(exchange.getRequestURI().getRawQuery(), params);
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (type != null && type.startsWith("application/x-www-form-urlencoded")) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int len;
+            try (InputStream in = exchange.getRequestBody()) {
+                while ((len = in.read(buffer)) != -1) body.write(buffer, 0, len);
+            }
+            parse(new String(body.toByteArray(), StandardCharsets.UTF_8), params);
+        }
+        return params;
+    }
+
+    private static void parse(String query, Map<String, String> params) throws UnsupportedEncodingException {
+        if (query == null || query.isEmpty()) return;
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals <= 0) continue;
+            params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                    URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Cancels every job, closes the connections kept for the next downloads and stops the daemon.
+     */
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+        }
+        for (Job job : jobs.values()) {
+            cancel(job);
+        }
+        if (runners != null) {
+            // The runners waiting for a job are woken up
+            for (int i = 0; i < parallel; i++) {
+                queue.add(STOP);
+            }
+            runners.shutdown();
+            try {
+                // The running downloads save their journal before stopping
+                if (!runners.awaitTermination(10, TimeUnit.SECONDS)) runners.shutdownNow();
+            } catch (InterruptedException e) {
+                runners.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        ConnectionPool.shared().close();
+        Http2Client.shared().close();
+        stopped.countDown();
+    }
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    private static class Job {
+
+        private final long id;
+        private final String url;
+        private final File output;
+        private final String hash, hashType;
+        private volatile int priority;
+        private volatile State state = State.QUEUED;
+        private volatile Downloader downloader;
+        private volatile DownloadMap map;
+        private volatile String message;
+        private volatile long started, ended;
+
+        private Job(long id, String url, File output, String hash, String hashType, int priority) {
+            this.id = id;
+            this.url = url;
+            this.output = output;
+            this.hash = hash;
+            this.hashType = hashType;
+            this.priority = priority;
+        }
+    }
+}
@@ -12,40 +12,36 @@ public class DownloadEntry {
     private final String id;
     private final NetworkInterface ni;
     protected float repartition;
+    private final boolean dynamic;
     private File store;
     private Range range;
     private DownloadTracker tracker;
+    private final EntryMetrics metrics;
     private long throttle = -1;
+    private RateLimiter limiter;
 
     public DownloadEntry(String id, NetworkInterface ni, float repartition) {
         this.id = id;
         this.ni = ni;
         this.repartition = repartition;
+        this.dynamic = repartition == -1f;
         this.tracker = new DownloadTracker();
-        try {
-            this.store = File.createTempFile(id + ".chunk." + StringUtils.randomHex(16), ".bin");
-            this.store.deleteOnExit();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        this.metrics = new EntryMetrics(this);
     }
 
     public DownloadEntry(String id, NetworkInterface ni, float repartition, long throttle) {
         this.id = id;
         this.ni = ni;
         this.repartition = repartition;
-        this.throttle = throttle;
+        this.dynamic = repartition == -1f;
         this.tracker = new DownloadTracker();
-        try {
-            this.store = File.createTempFile(id + ".chunk." + StringUtils.randomHex(16), ".bin");
-            this.store.deleteOnExit();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        this.metrics = new EntryMetrics(this);
+        setThrottle(throttle);
     }
 
     public void setThrottle(long throttle) {
         this.throttle = throttle;
+        this.limiter = throttle > 0 ? new RateLimiter(throttle) : null;
     }
 
     public void setRange(Range range) {
@@ -56,7 +52,18 @@ public class DownloadEntry {
         return range;
     }
 
+    /**
+     * Returns the chunk file of this entry, it is only created when the download is written in chunks.
+     */
     public File getStore() {
+        if (store == null) {
+            try {
+                this.store = File.createTempFile(id + ".chunk." + StringUtils.randomHex(16), ".bin");
+                this.store.deleteOnExit();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         return store;
     }
 
@@ -68,6 +75,10 @@ public class DownloadEntry {
         return tracker;
     }
 
+    public EntryMetrics getMetrics() {
+        return metrics;
+    }
+
     public boolean isThrottled() {
         return throttle > 0;
     }
@@ -76,10 +87,32 @@ public class DownloadEntry {
         return throttle;
     }
 
+    /**
+     * Makes this entry draw from a global limiter: its own limiter then holds the allocation of the entry,
+     * which must not exceed its throttle.
+     */
+    public void share(RateLimiter global) {
+        this.limiter = new RateLimiter(isThrottled() ? throttle : global.getBytesPerSec(), global);
+    }
+
+    /**
+     * Returns the limiter shared by all the connections of this entry, or null if it is not limited.
+     */
+    public RateLimiter getLimiter() {
+        return limiter;
+    }
+
     public float getRepartition() {
         return repartition;
     }
 
+    /**
+     * Returns true if the repartition was not given by the user and is computed by the map.
+     */
+    public boolean isDynamic() {
+        return dynamic;
+    }
+
     public NetworkInterface getNetworkInterface() {
         return ni;
     }
@@ -0,0 +1,119 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * Keeps track of the bytes already written in the output file so an interrupted download can be resumed.
+ * The journal is only rewritten after the output file was flushed to the disk, so it never claims
+ * bytes which could have been lost by a crash.
+ */
+public class DownloadJournal {
+
+    public static final long FLUSH_INTERVAL = 1000;
+
+    private final File file;
+    private final String url, etag, lastModified;
+    private final long length;
+    private final List<long[]> segments;
+
+    public DownloadJournal(File file, String url, long length, String etag, String lastModified) {
+        this.file = file;
+        this.url = url;
+        this.length = length;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.segments = new ArrayList<>();
+    }
+
+    /**
+     * Returns the journal file of the given output, stored next to it.
+     */
+    public static File of(File output) {
+        return new File(output.getPath() + ".journal");
+    }
+
+    /**
+     * Reads a journal file.
+     *
+     * @return the journal or null if the file does not exist or is not a valid journal
+     */
+    public static DownloadJournal load(File file) {
+        if (!file.isFile()) return null;
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+            DownloadJournal journal = new DownloadJournal(file, properties.getProperty("url"),
+                    Long.parseLong(properties.getProperty("length")),
+                    properties.getProperty("etag"), properties.getProperty("last-modified"));
+            int count = Integer.parseInt(properties.getProperty("segments"));
+            for (int i = 0; i < count; i++) {
+                String[] values = properties.getProperty("segment." + i).split(":");
+                journal.segments.add(new long[]{Long.parseLong(values[0]), Long.parseLong(values[1]), Long.parseLong(values[2])});
+            }
+            return journal;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if both journals describe the same version of the same file. A journal without
+     * any validator never matches since there is no way to tell whether the file changed.
+     */
+    public boolean matches(DownloadJournal other) {
+        if (!Objects.equals(url, other.url) || length != other.length) return false;
+        if (etag != null) return etag.equals(other.etag);
+        return lastModified != null && lastModified.equals(other.lastModified);
+    }
+
+    /**
+     * Plans the missing bytes of every recorded segment into the scheduler.
+     */
+    public void restore(RangeScheduler scheduler) {
+        for (long[] segment : segments) {
+            scheduler.restore(segment[0], segment[1], segment[2]);
+        }
+    }
+
+    /**
+     * Forces the written bytes to the disk then records them.
+     */
+    public synchronized void save(RangeScheduler scheduler, FileChannel channel) throws IOException {
+        List<long[]> snapshot = scheduler.snapshot();
+        channel.force(false);
+
+        Properties properties = new Properties();
+        properties.setProperty("url", url);
+        properties.setProperty("length", String.valueOf(length));
+        if (etag != null) properties.setProperty("etag", etag);
+        if (lastModified != null) properties.setProperty("last-modified", lastModified);
+        properties.setProperty("segments", String.valueOf(snapshot.size()));
+        for (int i = 0; i < snapshot.size(); i++) {
+            long[] segment = snapshot.get(i);
+            properties.setProperty("segment." + i, segment[0] + ":" + segment[1] + ":" + segment[2]);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, "SmartDownloader journal");
+            // The rename may reach the disk before the content otherwise, leaving an empty journal after a crash
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void delete() {
+        file.delete();
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
@@ -69,20 +69,54 @@ public class DownloadMap {
             }
         }
 
-        final float p = (1f - total) / undefined.size();
+        final float p = undefined.isEmpty() ? 0 : (1f - total) / undefined.size();
         for (DownloadEntry entry : undefined) {
-            if (entry.getRepartition() != -1f) {
-                entry.repartition = p;
-            }
+            entry.repartition = p;
+            total += p;
         }
 
-        if (total != 1) {
+        if (Math.abs(total - 1) > 0.001f) {
             throw new RuntimeException("Invalid download repartition");
         }
         locked = true;
         return this;
     }
 
+    /**
+     * Shares what the user did not assign between the dynamic entries, proportionally to the given
+     * throughputs (in bytes per second). Nothing changes if no throughput could be measured.
+     */
+    public void rebalance(Map<DownloadEntry, Double> throughputs) {
+        float fixed = 0;
+        double sum = 0;
+        for (DownloadEntry de : entries.values()) {
+            if (de.isDynamic()) {
+                sum += throughputs.getOrDefault(de, 0d);
+            } else {
+                fixed += de.getRepartition();
+            }
+        }
+        if (sum <= 0) return;
+
+        for (DownloadEntry de : entries.values()) {
+            if (de.isDynamic()) {
+                de.repartition = (float) ((1f - fixed) * throughputs.getOrDefault(de, 0d) / sum);
+            }
+        }
+    }
+
+    /**
+     * Returns a new map with the same network interfaces, repartitions and speeds, to be used by another download.
+     */
+    public DownloadMap copy() {
+        DownloadMap copy = new DownloadMap();
+        for (DownloadEntry entry : entries.values()) {
+            copy.with(entry.getNetworkInterface(), entry.isDynamic() ? -1f : entry.getRepartition(),
+                    entry.isThrottled() ? entry.getThrottleSpeed() : -1L);
+        }
+        return copy;
+    }
+
     public boolean isLocked() {
         return locked;
     }
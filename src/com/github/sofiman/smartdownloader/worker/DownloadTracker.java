@@ -5,63 +5,190 @@ import com.github.sofiman.smartdownloader.utils.Streams;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Follows the progress of an entry, shared by all the connections of the entry.
+ * <p>
+ * The connections only add their bytes to a {@link LongAdder}, whose cells spread the writes of the
+ * threads so they do not fight over a single counter, and nothing is allocated per read. The throughput
+ * is sampled by the observers instead: the first one to read after the sample interval measures it,
+ * the others read the last sample, none of them waits.
+ */
 public class DownloadTracker implements Streams.Agent {
 
-    private final long interval = 1000;
-    private long availableBytes;
-    private long lastLength = 0, time = -1;
+    private static final long SAMPLE_INTERVAL = 250_000_000L;
+    /**
+     * The time constant of the smoothed throughput (in nanoseconds), the weight of a sample halves about every 2 seconds.
+     */
+    private static final double SMOOTHING = 3e9;
 
-    private AtomicReference<Float> progress;
-    private AtomicReference<Long> speed;
-    private Runnable closeRunnable;
+    private final LongAdder downloaded;
+    private final AtomicLong assigned, started;
+    private final AtomicInteger connections;
+    private final AtomicBoolean sampling;
+    private final CountDownLatch done;
+    private volatile long sampleTime, sampleBytes, endTime;
+    private volatile double instant, smoothed;
     private volatile boolean finished;
 
     public DownloadTracker(){
-        progress = new AtomicReference<>(0f);
-        speed = new AtomicReference<>(0L);
+        downloaded = new LongAdder();
+        assigned = new AtomicLong(0);
+        started = new AtomicLong(0);
+        connections = new AtomicInteger(0);
+        sampling = new AtomicBoolean(false);
+        done = new CountDownLatch(1);
     }
 
     @Override
     public void onCopyStarted(long availableBytes) throws IOException {
-        this.time = System.currentTimeMillis()+interval;
-        this.lastLength = 0;
-        this.speed.set(0L);
+        long now = System.nanoTime();
+        if (started.compareAndSet(0, now)) {
+            sampleTime = now;
+        }
     }
 
     @Override
     public void onCopyProgress(int len, long totalProgress) {
-        progress.set(totalProgress * 1f / availableBytes);
-        if(time < System.currentTimeMillis()){
-            this.speed.set(totalProgress - lastLength);
-            time = System.currentTimeMillis() + interval;
-            lastLength = totalProgress;
-        }
+        downloaded.add(len);
     }
 
     @Override
     public void onCopyEnded(InputStream in, OutputStream out) throws IOException {
-        closeRunnable.run();
-        finished = true;
     }
 
-    public synchronized float getProgress() {
-        return progress.get();
+    /**
+     * Measures the throughput since the previous sample, if the interval elapsed and no other observer
+     * is doing it.
+     */
+    private void sample() {
+        long now = System.nanoTime();
+        if (started.get() == 0 || now - sampleTime < SAMPLE_INTERVAL || !sampling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long elapsed = now - sampleTime;
+            if (elapsed < SAMPLE_INTERVAL) return;
+            long total = downloaded.sum();
+            double rate = (total - sampleBytes) * 1e9 / elapsed;
+            // The first sample has nothing to be smoothed with
+            smoothed = sampleBytes == 0 && smoothed == 0 ? rate :
+                    smoothed + (1 - Math.exp(-elapsed / SMOOTHING)) * (rate - smoothed);
+            instant = rate;
+            sampleBytes = total;
+            sampleTime = now;
+        } finally {
+            sampling.set(false);
+        }
+    }
+
+    public float getProgress() {
+        long assigned = this.assigned.get();
+        return assigned > 0 ? Math.min(1f, downloaded.sum() * 1f / assigned) : 0f;
+    }
+
+    /**
+     * Returns the smoothed throughput in bytes per second: an exponentially weighted moving average of the samples.
+     */
+    public long getSpeed() {
+        sample();
+        return Math.round(smoothed);
+    }
+
+    /**
+     * Returns the throughput of the last sample in bytes per second.
+     */
+    public long getInstantSpeed() {
+        sample();
+        return Math.round(instant);
+    }
+
+    /**
+     * Returns the throughput since the first byte was requested, in bytes per second.
+     */
+    public long getAverageSpeed() {
+        long started = this.started.get();
+        if (started == 0) return 0;
+        long end = finished ? endTime : System.nanoTime();
+        return Math.round(downloaded.sum() * 1e9 / Math.max(1, end - started));
+    }
+
+    /**
+     * Returns the estimated time left in milliseconds at the smoothed throughput, -1 if it can not be estimated.
+     */
+    public long getEta() {
+        if (finished) return 0;
+        long speed = getSpeed();
+        long remaining = assigned.get() - downloaded.sum();
+        if (speed <= 0 || assigned.get() <= 0) return -1;
+        return Math.max(0, remaining) * 1000 / speed;
     }
 
-    public synchronized long getSpeed() {
-        return speed.get();
+    public long getDownloaded() {
+        return downloaded.sum();
     }
 
-    public synchronized boolean isFinished() {
+    /**
+     * Returns the number of bytes this entry is expected to download, 0 while the length is unknown.
+     */
+    public long getAssigned() {
+        return assigned.get();
+    }
+
+    public boolean isFinished() {
         return finished;
     }
 
-    protected DownloadTracker init(long length, Runnable runnable){
-        this.availableBytes = length;
-        this.closeRunnable = runnable;
+    /**
+     * Waits for the entry to finish, at most the given time.
+     *
+     * @return true if the entry finished
+     */
+    public boolean awaitFinish(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    /**
+     * Returns the number of connections currently working for this entry.
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Records a new connection for this entry.
+     */
+    protected void connect() {
+        connections.incrementAndGet();
+    }
 
-        return this;
+    /**
+     * Records the end of a connection, the entry is finished once its last connection ended.
+     */
+    protected void disconnect() {
+        if (connections.decrementAndGet() <= 0) {
+            finish();
+        }
+    }
+
+    /**
+     * Adds (or removes when negative) bytes to the amount this entry is expected to download.
+     */
+    protected void assign(long bytes) {
+        assigned.addAndGet(bytes);
+    }
+
+    protected void finish() {
+        if (!finished) {
+            this.endTime = System.nanoTime();
+            this.finished = true;
+            done.countDown();
+        }
     }
 }
@@ -3,83 +3,760 @@ package com.github.sofiman.smartdownloader.worker;
 import com.github.sofiman.smartdownloader.utils.Range;
 import com.github.sofiman.smartdownloader.utils.Streams;
 import com.github.sofiman.smartdownloader.utils.StringUtils;
+import com.github.sofiman.smartdownloader.utils.Threads;
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class Downloader {
 
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long PROBE_SIZE = 8 * 1024 * 1024;
+
     private final String url;
     private final File output;
     private String hash, hashType;
+    private OutputMode outputMode = OutputMode.DIRECT;
+    private Engine engine = Engine.BLOCKING;
+    private int connections = 1, maxConnections = 1;
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+    private Transport transport = Transport.HTTP1;
+    private long globalSpeed = -1;
+    private Http2Client http2;
+    private long probeDuration = -1;
+    private PieceManifest pieces;
+    private File inflated;
+    private int refreshRate = ProgressRenderer.DEFAULT_RATE;
+    private File metricsFile;
+    private InetSocketAddress metricsAddress;
+    private boolean persistentConnections;
+    private List<String> mirrors = Collections.emptyList();
+    private MirrorSet mirrorSet;
+    private volatile RangeScheduler scheduler;
+    private volatile boolean cancelled;
 
     public Downloader(String url, File output) {
         this.url = url;
         this.output = output;
     }
 
+    /**
+     * Returns a downloader of another file with the same settings, except those which belong to a single file:
+     * the checksums, the piece manifest, the mirrors and the decompressed file. The metrics are not served by the copy either,
+     * their address can only be bound once.
+     */
+    public Downloader copy(String url, File output) {
+        Downloader copy = new Downloader(url, output);
+        copy.outputMode = outputMode;
+        copy.engine = engine;
+        copy.connections = connections;
+        copy.maxConnections = maxConnections;
+        copy.threadMode = threadMode;
+        copy.transport = transport;
+        copy.globalSpeed = globalSpeed;
+        copy.probeDuration = probeDuration;
+        copy.refreshRate = refreshRate;
+        copy.metricsFile = metricsFile;
+        copy.persistentConnections = persistentConnections;
+        return copy;
+    }
+
     public void withChecksum(String hash, String hashType) {
         this.hash = hash;
         this.hashType = hashType;
     }
 
+    public void withOutputMode(OutputMode outputMode) {
+        this.outputMode = outputMode;
+    }
+
+    /**
+     * Selects how the connections are driven. Only available when writing directly to the output.
+     */
+    public void withEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Selects the kind of threads running the requests, the trackers and the stages.
+     */
+    public void withThreadMode(ThreadMode threadMode) {
+        this.threadMode = threadMode;
+    }
+
+    /**
+     * Selects the protocol of the requests. Over HTTP/2, the connections of an entry are the streams
+     * of a single connection.
+     */
+    public void withTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Limits the combined speed of all the entries (in bytes per second). The part of an entry which
+     * does not use it is given to the others.
+     */
+    public void withGlobalSpeed(long globalSpeed) {
+        this.globalSpeed = globalSpeed;
+    }
+
+    /**
+     * Opens the given number of connections on every network interface at first, then adds more while
+     * the throughput of the interface keeps rising, up to the maximum. The connections of an entry share
+     * its segments. Only available when writing directly to the output.
+     */
+    public void withConnections(int connections, int maxConnections) {
+        this.connections = Math.max(1, connections);
+        this.maxConnections = Math.max(this.connections, maxConnections);
+    }
+
+    /**
+     * Measures the throughput of every entry during the given time (in milliseconds) before sharing
+     * the file between the dynamic entries. Only available when writing directly to the output.
+     */
+    public void withProbe(long probeDuration) {
+        this.probeDuration = probeDuration;
+    }
+
+    /**
+     * Verifies every piece of the output as soon as it is written and fetches the corrupt ones again.
+     * Only available when writing directly to the output.
+     */
+    public void withPieces(PieceManifest pieces) {
+        this.pieces = pieces;
+    }
+
+    /**
+     * Inflates the download into the given file while it is downloaded, on a thread of its own. The output
+     * keeps the bytes as they were received: the servers are asked for compressed bodies, which are not
+     * inflated by the requests. Only runs during the download when writing directly to the output,
+     * otherwise the output is inflated once complete.
+     */
+    public void withDecompression(File inflated) {
+        this.inflated = inflated;
+    }
+
+    /**
+     * Sets how many times per second the progress is drawn.
+     */
+    public void withRefreshRate(int refreshRate) {
+        this.refreshRate = refreshRate;
+    }
+
+    /**
+     * Exports the metrics of the network interfaces while downloading, as MBeans and in the Prometheus
+     * text format: written every second to the given file and/or served on the given address.
+     */
+    public void withMetrics(File metricsFile, InetSocketAddress metricsAddress) {
+        this.metricsFile = metricsFile;
+        this.metricsAddress = metricsAddress;
+    }
+
+    /**
+     * Downloads the file from the given URLs along with the main one, every request going to the mirror its
+     * network interface receives the most from. The mirrors must serve the same length and ETag as the main URL.
+     * Only available when writing directly to the output.
+     */
+    public void withMirrors(List<String> mirrors) {
+        this.mirrors = mirrors;
+    }
+
+    /**
+     * Keeps the idle sockets and HTTP/2 connections open once the download is done, for the next downloads
+     * of the same process.
+     */
+    public void withPersistentConnections(boolean persistentConnections) {
+        this.persistentConnections = persistentConnections;
+    }
+
+    /**
+     * Stops the download from another thread: the connections stop after their current read and the progress
+     * is saved in the journal, so the download can be resumed. Only the downloads written directly into the
+     * output can be stopped, the others run to their end.
+     */
+    public void cancel() {
+        cancelled = true;
+        RangeScheduler scheduler = this.scheduler;
+        if (scheduler != null) {
+            scheduler.cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
     public void download(DownloadMap map) throws IOException, InterruptedException {
         if (!map.isLocked()) throw new IllegalArgumentException();
+        if (threadMode == ThreadMode.VIRTUAL && !Threads.isVirtualSupported()) {
+            System.out.println("Virtual threads require Java 21, using platform threads without any limit instead");
+        }
+
+        http2 = null;
+        if (transport == Transport.H2C) {
+            if ("http".equalsIgnoreCase(new URL(url).getProtocol())) {
+                http2 = Http2Client.shared();
+            } else {
+                System.out.println("HTTP/2 is only supported over plain HTTP (h2c), using HTTP/1.1");
+            }
+        }
 
-        Map<String, String> prefetch = new Request(url)
-                .header("Accept-Encoding", "gzip, deflate").head();
+        // The length of the ranges is the length of the representation the ranges are asked for
+        Map<String, String> prefetch = new Request(url).http2(http2)
+                .header("Accept-Encoding", inflated != null ? "gzip, deflate" : "identity").head();
         String acceptRanges = prefetch.get("Accept-Ranges");
         if (map.size() > 1 && acceptRanges != null && !acceptRanges.toLowerCase().contains("bytes")) {
             throw new RuntimeException("The target url does not allow the use of byte ranges");
         }
-        final long length = Long.parseLong(prefetch.get("Content-Length"));
-        if (length < 0) {
-            return;
-        }
-        String encoding = prefetch.get("Content-Encoding");
+        String contentLength = prefetch.get("Content-Length");
+        long length = contentLength != null && prefetch.get("Transfer-Encoding") == null ?
+                Long.parseLong(contentLength.trim()) : -1;
+        final String encoding = prefetch.get("Content-Encoding");
         if (encoding != null) {
             System.out.println("Detected encoding: " + encoding);
         }
+        if (length < 0) {
+            // A generated or chunked response may still be served in ranges, the server tells the length then
+            length = new Request(url).http2(http2).probeLength();
+            if (length >= 0) {
+                System.out.println("The server did not give the length but accepts ranges");
+            }
+        }
+
+        System.out.println("Prefetch result: <Content Length>=" + (length >= 0 ? length : "unknown") +
+                "; <Connections>=" + map.size());
+
+        mirrorSet = null;
+        if (!mirrors.isEmpty()) {
+            if (length < 0 || outputMode != OutputMode.DIRECT) {
+                System.out.println("Mirrors are only used when writing a file of known length directly, " +
+                        "downloading from the main URL only");
+            } else {
+                List<String> urls = new ArrayList<>();
+                urls.add(url);
+                urls.addAll(mirrors);
+                mirrorSet = new MirrorSet(urls);
+                mirrorSet.validate(length, prefetch, http2, inflated != null ? "gzip, deflate" : "identity");
+            }
+        }
+
+        BandwidthBalancer balancer = null;
+        if (globalSpeed > 0) {
+            balancer = new BandwidthBalancer(map.getEntries().values(), new RateLimiter(globalSpeed));
+            Threads.factory("balancer", threadMode == ThreadMode.VIRTUAL).newThread(balancer).start();
+            System.out.println("Sharing " + StringUtils.humanReadableByteCount(globalSpeed, true) +
+                    "/s between the network interfaces");
+        }
+
+        MetricsExporter metrics = new MetricsExporter(output.getName(), map.getEntries().values(),
+                metricsFile, metricsAddress);
+
+        // Idle sockets are kept open for the requests of this download only
+        try {
+            metrics.start(Threads.factory("metrics", threadMode == ThreadMode.VIRTUAL));
+            if (length < 0) {
+                downloadStream(map);
+                inflateOutput(encoding);
+            } else if (outputMode == OutputMode.DIRECT) {
+                downloadDirect(map, length, prefetch);
+            } else {
+                if (engine != Engine.BLOCKING) {
+                    System.out.println("Chunk files are always written by the blocking engine");
+                }
+                partition(map, 0, length, null);
+                downloadChunks(map.getEntries().entrySet(), length);
+                checksumOutput();
+                inflateOutput(encoding);
+            }
+        } finally {
+            if (balancer != null) {
+                balancer.cancel();
+            }
+            metrics.close();
+            if (!persistentConnections) {
+                ConnectionPool.shared().close();
+                if (http2 != null) {
+                    http2.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the checksums of the output once it is complete.
+     */
+    private void checksumOutput() {
+        if (hash == null || hashType == null) return;
+        try {
+            Map<String, String> results = new LinkedHashMap<>();
+            for (String algorithm : hashType.split("\\s*,\\s*")) {
+                MessageDigest md = MessageDigest.getInstance(algorithm);
+                try (InputStream is = new FileInputStream(output)) {
+                    Streams.copy(is, md, new byte[2048], Streams.EMPTY_AGENT);
+                }
+                results.put(algorithm, StringUtils.toHex(md.digest()).toLowerCase());
+            }
+            printChecksums(results);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Inflates the output once it is complete, when it could not be done during the download.
+     */
+    private void inflateOutput(String encoding) throws IOException, InterruptedException {
+        if (inflated == null) return;
+        try (FileChannel channel = FileChannel.open(output.toPath())) {
+            long length = channel.size();
+            InflateStage stage = new InflateStage(channel, () -> length, length, inflated, "deflate".equalsIgnoreCase(encoding));
+            stage.run();
+            stage.await();
+            printInflated(stage);
+        }
+    }
+
+    private static void printInflated(InflateStage stage) {
+        System.out.println("Inflated " + StringUtils.humanReadableByteCount(stage.getInflated(), true) + " into " +
+                stage.getTarget().getAbsolutePath());
+    }
+
+    /**
+     * Downloads a resource of unknown length over a single connection of the first entry, written to the
+     * output as it arrives. Chunked bodies are decoded on the fly. The download can not be shared nor resumed
+     * without ranges, so an interrupted stream fails.
+     */
+    private void downloadStream(DownloadMap map) throws IOException, InterruptedException {
+        final Map.Entry<String, DownloadEntry> first = map.getEntries().entrySet().iterator().next();
+        final DownloadEntry dwe = first.getValue();
+        System.out.println("The length is unknown and the server does not accept ranges, streaming over <" +
+                dwe.getId() + "> only");
+        if (pieces != null) {
+            System.out.println("Pieces can not be verified without the length, skipping the verification");
+        }
+        for (DownloadEntry entry : map.getEntries().values()) {
+            if (entry != dwe) entry.getTracker().finish();
+        }
+        long start = System.currentTimeMillis();
+        System.out.println("+ " + output.getAbsolutePath());
+        final Request request = new Request(url)
+                .netInterface(dwe.getNetworkInterface())
+                .out(output).tracker(dwe.getTracker()).http2(http2)
+                .limiter(dwe.getLimiter()).decode(inflated == null).metrics(dwe.getMetrics());
+        final ExecutorService service = newWorkers();
+        Future<?> task = service.submit(() -> {
+            try {
+                request.send();
+            } finally {
+                dwe.getTracker().finish();
+            }
+            return null;
+        });
+        service.shutdown();
+
+        DownloadTracker tracker = dwe.getTracker();
+        new ProgressRenderer(Collections.singleton(first), refreshRate, false).render();
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        if (!request.isComplete()) {
+            throw new IOException("Download incomplete: the stream ended after " + tracker.getDownloaded() +
+                    " bytes, the server does not accept ranges to resume it");
+        }
+        long end = System.currentTimeMillis();
+        System.out.println("\nSuccessfully downloaded " + tracker.getDownloaded() + " bytes in " + (end - start) / 1000f + "s");
+        checksumOutput();
+    }
+
+    /**
+     * Preallocates the output file and lets every entry write its range at its own offset,
+     * the file is complete as soon as the last worker receives its last byte.
+     */
+    private void downloadDirect(DownloadMap map, long length, Map<String, String> prefetch) throws IOException, InterruptedException {
+        final DownloadJournal journal = new DownloadJournal(DownloadJournal.of(output), url, length,
+                prefetch.get("ETag"), prefetch.get("Last-Modified"));
+        final DownloadJournal previous = DownloadJournal.load(journal.getFile());
+        final boolean resume = previous != null && previous.matches(journal) && output.length() == length;
+        if (previous != null && !resume) {
+            System.out.println("The journal does not match the target file anymore, restarting the download");
+        }
+
+        final RandomAccessFile file = new RandomAccessFile(output, "rw");
+        file.setLength(length);
+        final FileChannel channel = file.getChannel();
+
+        final Set<Map.Entry<String, DownloadEntry>> entries = map.getEntries().entrySet();
+        final RangeScheduler scheduler = new RangeScheduler(length);
+        this.scheduler = scheduler;
+        if (cancelled) {
+            scheduler.cancel();
+        }
+        PieceVerifier verifier = null;
+        if (pieces != null) {
+            try {
+                pieces.validate(length);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            verifier = new PieceVerifier(pieces, channel, scheduler);
+            scheduler.waitFor(verifier::isSettled);
+            Threads.factory("verifier", threadMode == ThreadMode.VIRTUAL).newThread(verifier).start();
+            System.out.println("Verifying " + pieces);
+        }
+        DigestStage digestStage = null;
+        if (hash != null && hashType != null) {
+            try {
+                digestStage = new DigestStage(channel, verifier != null ? verifier::getFrontier : scheduler::getFrontier,
+                        length, hashType.split("\\s*,\\s*"));
+                Threads.factory("digest", threadMode == ThreadMode.VIRTUAL).newThread(digestStage).start();
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
+            }
+        }
+        InflateStage inflateStage = null;
+        if (inflated != null) {
+            inflateStage = new InflateStage(channel, verifier != null ? verifier::getFrontier : scheduler::getFrontier,
+                    length, inflated, "deflate".equalsIgnoreCase(prefetch.get("Content-Encoding")));
+            Threads.factory("inflate", threadMode == ThreadMode.VIRTUAL).newThread(inflateStage).start();
+        }
+        final Map<DownloadEntry, Segment> probes = new HashMap<>();
+        long from = 0;
+        if (resume) {
+            previous.restore(scheduler);
+            System.out.println("Resuming download: " + scheduler.getMissing() + " bytes left");
+        } else if (probeDuration > 0) {
+            // Every entry waits after its probe for the ranges computed from the results
+            scheduler.hold();
+            long probeSize = Math.min(PROBE_SIZE, length / (2L * entries.size()));
+            for (Map.Entry<String, DownloadEntry> entry : entries) {
+                probes.put(entry.getValue(), scheduler.assign(entry.getValue(), from, from + probeSize - 1));
+                from += probeSize;
+            }
+        } else {
+            partition(map, 0, length, scheduler);
+        }
+
+        long start = System.currentTimeMillis();
+        final ExecutorService service;
+        System.out.println("Preparing download threads...");
+        System.out.println("+ " + output.getAbsolutePath());
+        final URL target = new URL(url);
+        Engine engine = this.engine;
+        if (engine == Engine.NIO && !"http".equalsIgnoreCase(target.getProtocol())) {
+            System.out.println("The NIO engine only supports plain HTTP, using the blocking engine");
+            engine = Engine.BLOCKING;
+        }
+        if (engine == Engine.NIO && http2 != null) {
+            System.out.println("The NIO engine only speaks HTTP/1.1, using the blocking engine for HTTP/2");
+            engine = Engine.BLOCKING;
+        }
+        if (engine == Engine.NIO && mirrorSet != null) {
+            System.out.println("The NIO engine only requests the main URL, using the blocking engine for the mirrors");
+            engine = Engine.BLOCKING;
+        }
+        final Consumer<DownloadEntry> opener;
+        if (engine == Engine.NIO) {
+            List<DownloadEntry> list = new ArrayList<>(map.getEntries().values());
+            NioEngine nio = new NioEngine(target, channel, scheduler, list, connections);
+            if (inflated != null) {
+                nio.withAcceptEncoding("gzip, deflate");
+            }
+            service = Executors.newSingleThreadExecutor();
+            service.submit(nio);
+            opener = nio::open;
+        } else {
+            service = newWorkers();
+            opener = dwe -> {
+                dwe.getTracker().connect();
+                try {
+                    service.submit(() -> work(dwe, scheduler, channel));
+                } catch (RejectedExecutionException e) {
+                    dwe.getTracker().disconnect();
+                }
+            };
+            for (Map.Entry<String, DownloadEntry> entry : entries) {
+                for (int i = 0; i < connections; i++) {
+                    opener.accept(entry.getValue());
+                }
+            }
+        }
+        if (!resume && probeDuration > 0) {
+            System.out.println("Probing network interfaces for " + probeDuration / 1000f + "s...");
+            long probeStart = System.nanoTime();
+            long deadline = probeStart + probeDuration * 1000000L;
+            while (System.nanoTime() < deadline && !isComplete(probes.values())) {
+                Thread.sleep(10);
+            }
+            long now = System.nanoTime();
+            Map<DownloadEntry, Double> throughputs = new HashMap<>();
+            for (Map.Entry<DownloadEntry, Segment> probe : probes.entrySet()) {
+                Segment segment = probe.getValue();
+                scheduler.truncate(segment);
+                long elapsed = (segment.getCompletionTime() != 0 ? segment.getCompletionTime() : now) - probeStart;
+                double throughput = (segment.getCommitted() - segment.getStart()) * 1e9 / Math.max(1, elapsed);
+                throughputs.put(probe.getKey(), throughput);
+                System.out.println("Probe <" + probe.getKey().getId() + ">: " +
+                        StringUtils.humanReadableByteCount((long) throughput, true) + "/s");
+            }
+            map.rebalance(throughputs);
+            partition(map, from, length, scheduler);
+            scheduler.resume();
+        }
+        ConnectionScaler scaler = null;
+        if (maxConnections > connections) {
+            scaler = new ConnectionScaler(map.getEntries().values(), maxConnections, opener);
+            Threads.factory("scaler", threadMode == ThreadMode.VIRTUAL).newThread(scaler).start();
+        }
+        if (mirrorSet != null) {
+            Threads.factory("mirrors", threadMode == ThreadMode.VIRTUAL).newThread(() -> mirrorSet.watch(scheduler)).start();
+        }
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+                Threads.factory("journal", threadMode == ThreadMode.VIRTUAL));
+        flusher.scheduleWithFixedDelay(() -> {
+            try {
+                journal.save(scheduler, channel);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, DownloadJournal.FLUSH_INTERVAL, DownloadJournal.FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        Thread shutdownHook = new Thread(() -> {
+            service.shutdownNow();
+            flusher.shutdownNow();
+            try {
+                journal.save(scheduler, channel);
+                System.out.println("\n[Terminated] Progress saved to " + journal.getFile().getAbsolutePath());
+                file.close();
+            } catch (IOException ignored) {
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        monitor(entries);
+
+        if (scaler != null) {
+            scaler.cancel();
+        }
+        if (mirrorSet != null) {
+            mirrorSet.cancel();
+        }
+        service.shutdown();
+        flusher.shutdownNow();
+        flusher.awaitTermination(1, TimeUnit.SECONDS);
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        if (!scheduler.isComplete()) {
+            if (digestStage != null) {
+                digestStage.cancel();
+            }
+            if (inflateStage != null) {
+                inflateStage.cancel();
+            }
+            if (verifier != null) {
+                verifier.cancel();
+            }
+            journal.save(scheduler, channel);
+            file.close();
+            if (scheduler.isCancelled()) {
+                throw new IOException("Download cancelled: " + scheduler.getMissing() + " bytes left, " +
+                        "run the same command again to resume");
+            }
+            throw new IOException("Download incomplete: " + scheduler.getMissing() + " bytes could not be fetched, " +
+                    "run the same command again to resume");
+        }
+        long end = System.currentTimeMillis();
+        if (verifier != null) {
+            if (verifier.getError() != null || verifier.getFailed() > 0) {
+                if (digestStage != null) {
+                    digestStage.cancel();
+                }
+                if (inflateStage != null) {
+                    inflateStage.cancel();
+                }
+                file.close();
+                journal.delete();
+                if (verifier.getError() != null) throw verifier.getError();
+                throw new IOException(verifier.getFailed() + " pieces are still corrupt after " +
+                        "being fetched again, the output file can not be trusted");
+            }
+        }
+        System.out.println("\nSuccessfully downloaded file in " + (end - start) / 1000f + "s");
+        if (mirrorSet != null) {
+            for (MirrorSet.Mirror mirror : mirrorSet.getMirrors()) {
+                System.out.println("Mirror " + mirror.getUrl() + ": " +
+                        StringUtils.humanReadableByteCount(mirror.getReceived(), true) +
+                        (mirror.isDropped() ? " (dropped)" : ""));
+            }
+        }
+        if (verifier != null) {
+            System.out.println("Verified " + verifier.getVerified() + " pieces");
+        }
+        // The download is complete even if a stage fails, it is not resumed
+        try {
+            if (digestStage != null) {
+                digestStage.signal();
+                digestStage.await();
+                printChecksums(digestStage.getResults());
+            }
+            if (inflateStage != null) {
+                inflateStage.signal();
+                inflateStage.await();
+                printInflated(inflateStage);
+            }
+        } finally {
+            file.close();
+            journal.delete();
+        }
+    }
+
+    /**
+     * Returns the executor running the requests. Every connection needs its own thread, otherwise the
+     * entries which started last wait for the first ones to finish (and the probe only measures the first ones).
+     */
+    private ExecutorService newWorkers() {
+        return Threads.perTask("worker", threadMode == ThreadMode.VIRTUAL);
+    }
+
+    /**
+     * Runs one connection of the entry, fetching segments until there is nothing left to share.
+     */
+    private void work(DownloadEntry dwe, RangeScheduler scheduler, FileChannel channel) {
+        try {
+            Segment segment;
+            while (true) {
+                if ((segment = scheduler.next(dwe)) == null) {
+                    if (scheduler.isDrained()) break;
+                    scheduler.awaitWork(100);
+                    continue;
+                }
+                if (!fetch(dwe, segment, scheduler, channel)) {
+                    scheduler.release(segment);
+                    break;
+                }
+            }
+        } catch (InterruptedException ignored) {
+        } finally {
+            dwe.getTracker().disconnect();
+        }
+    }
+
+    private static boolean isComplete(Collection<Segment> segments) {
+        for (Segment segment : segments) {
+            if (!segment.isComplete()) return false;
+        }
+        return true;
+    }
+
+    private void printChecksums(Map<String, String> results) {
+        String[] targets = hash.split("\\s*,\\s*");
+        int i = 0;
+        for (Map.Entry<String, String> result : results.entrySet()) {
+            String targetHash = i < targets.length ? targets[i++].toLowerCase() : "";
+            String title = "Checksums (" + result.getKey() + "): ";
+            String pad = "";
+            for (int j = 0; j < title.length(); j++) {
+                pad += " ";
+            }
+
+            System.out.println(title + "Calculated " + result.getValue());
+            System.out.println(pad + String.format("%11s", "Target ") + targetHash);
+        }
+    }
 
+    /**
+     * Splits the bytes from the given offset between the entries according to their repartition.
+     */
+    private void partition(DownloadMap map, long from, long length, RangeScheduler scheduler) {
         DownloadEntry de;
         int k = 0;
-        long len, p = 0;
+        long len, p = from;
         for (Map.Entry<String, DownloadEntry> entry : map.getEntries().entrySet()) {
             de = entry.getValue();
-            len = k++ == map.size() - 1 ? (length - p) : Math.round(de.getRepartition() * length);
-            de.setRange(new Range(p == 0 ? p : p + 1, p + len));
+            len = k++ == map.size() - 1 ? (length - p) : Math.round(de.getRepartition() * (length - from));
+            de.setRange(new Range(p, p + len - 1));
+            if (scheduler != null) {
+                scheduler.assign(de, p, p + len - 1);
+            }
+            System.out.println("Thread <" + de.getId() + "> will download with offset " + de.getRange().toReadableString());
             p += len;
         }
+    }
 
-        System.out.println("Prefetch result: <Content Length>=" + length + "; <Download Length>=" + p + "; <Connections>=" + map.size());
+    /**
+     * Fetches the segment until it is complete, resuming where the previous attempt stopped. Every request
+     * asks for a part of the segment (a chunk at most with mirrors), the rest is fetched next by the same entry.
+     *
+     * @return false if the entry failed too many times in a row without writing anything
+     */
+    private boolean fetch(DownloadEntry dwe, Segment segment, RangeScheduler scheduler, FileChannel channel) {
+        int attempts = 0;
+        long committed;
+        boolean retry = false;
+        while (!segment.isComplete()) {
+            committed = segment.getCommitted();
+            segment.rewind();
+            if (retry) {
+                dwe.getMetrics().onRetry();
+            }
+            retry = true;
+            MirrorSet.Mirror mirror = null;
+            if (mirrorSet != null) {
+                scheduler.limit(segment, mirrorSet.getChunk());
+                mirror = mirrorSet.pick(dwe, segment);
+            } else {
+                scheduler.bound(segment);
+            }
+            Request request = new Request(mirror != null ? mirror.getUrl() : url)
+                    .netInterface(dwe.getNetworkInterface())
+                    .out(channel, segment).tracker(dwe.getTracker()).http2(http2)
+                    .metrics(dwe.getMetrics());
+            request.header("Range", segment.request().toString());
+            request.limiter(dwe.getLimiter());
+            if (inflated != null) {
+                request.header("Accept-Encoding", "gzip, deflate").decode(false);
+            }
+            try {
+                request.send();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (mirror != null) {
+                mirrorSet.report(dwe, segment);
+            }
+            // The failures of a mirror which was dropped do not count against the entry
+            if (segment.getCommitted() > committed || mirror != null && mirror.isDropped()) {
+                attempts = 0;
+            } else if (++attempts >= MAX_ATTEMPTS) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        final Set<Map.Entry<String, DownloadEntry>> entries = map.getEntries().entrySet();
+    private void downloadChunks(Set<Map.Entry<String, DownloadEntry>> entries, long length) throws IOException, InterruptedException {
         long start = System.currentTimeMillis();
-        ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        ExecutorService service = newWorkers();
         System.out.println("Preparing download threads...");
+        Map<DownloadEntry, Future<Boolean>> results = new LinkedHashMap<>();
         for (Map.Entry<String, DownloadEntry> entry : entries) {
             final DownloadEntry dwe = entry.getValue();
-            System.out.println("Thread <" + dwe.getId() + "> will download with offset " + dwe.getRange().toReadableString());
             System.out.println("+ " + dwe.getStore().getAbsolutePath());
-            service.submit(() -> {
-                Request request = new Request(url)
-                        .netInterface(dwe.getNetworkInterface())
-                        .out(dwe.getStore()).tracker(dwe.getTracker());
-                if(dwe.getRange() != null){
-                    request.header("Range", dwe.getRange().toString());
-                }
-                if (dwe.isThrottled()) {
-                    request.throttle(dwe.getThrottleSpeed());
-                }
+            dwe.getTracker().assign(chunkLength(dwe));
+            results.put(dwe, service.submit(() -> {
                 try {
-                    request.send();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    return fetchChunk(dwe);
+                } finally {
+                    dwe.getTracker().finish();
                 }
-            });
+            }));
         }
         Thread shutdownHook = new Thread(() -> {
             service.shutdownNow();
@@ -91,41 +768,35 @@ public class Downloader {
         });
         Runtime.getRuntime().addShutdownHook(shutdownHook);
 
-        final int threads = entries.size();
-        int finished;
-        float total, s = 0;
-        DownloadTracker tracker;
-        while (true) {
-            Thread.sleep(1);
-            StringBuilder progress = new StringBuilder();
-            finished = 0;
-            total = 0;
-            for (Map.Entry<String, DownloadEntry> entry : entries) {
-                tracker = entry.getValue().getTracker();
-                s = tracker.getProgress();
+        monitor(entries);
 
-                progress.append(entry.getKey())
-                        .append(StringUtils.progress('=', ' ',
-                                '>', " [%s] %.1f", s, 20))
-                        .append("% (")
-                        .append(StringUtils.humanReadableByteCount(tracker.getSpeed(), true)).append("/s")
-                        .append(entry.getValue().isThrottled() ? "*" : "").append(") ");
-                finished += tracker.isFinished() ? 1 : 0;
-                total += s;
+        service.shutdown();
+        long missing = 0;
+        for (Map.Entry<DownloadEntry, Future<Boolean>> result : results.entrySet()) {
+            DownloadEntry dwe = result.getKey();
+            boolean complete;
+            try {
+                complete = result.getValue().get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                complete = false;
             }
-            System.out.print("\rDownloading: " + progress);
-            if(threads > 1){
-                System.out.print("total of " + String.format("%.1f", total * 100f / threads) + "%");
+            if (!complete) {
+                missing += chunkLength(dwe) - dwe.getStore().length();
             }
-            if (finished == threads) {
-                break;
+        }
+        if (missing > 0) {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            for (Map.Entry<String, DownloadEntry> entry : entries) {
+                entry.getValue().getStore().delete();
             }
+            throw new IOException("Download incomplete: " + missing + " bytes could not be fetched, " +
+                    "the chunk files were deleted");
         }
-
-        service.shutdown();
         long end = System.currentTimeMillis();
         System.out.println("\nSuccessfully downloaded file in " + (end - start) / 1000f + "s");
         System.out.print("Copying chunk files...");
+        final int threads = entries.size();
         FileOutputStream out = new FileOutputStream(output);
         byte[] buf = new byte[2048];
         AtomicLong progress = new AtomicLong(0);
@@ -164,27 +835,108 @@ public class Downloader {
         Runtime.getRuntime().removeShutdownHook(shutdownHook);
 
         out.close();
-        if (hash != null && hashType != null) {
-            try {
-                MessageDigest md = MessageDigest.getInstance(hashType);
-                try (InputStream is = new FileInputStream(output)) {
-                    Streams.copy(is, md, buf, Streams.EMPTY_AGENT);
-                }
-                byte[] digest = md.digest();
-                String hash = StringUtils.toHex(digest).toLowerCase();
-                String targetHash = this.hash.toLowerCase();
-                String title = "Checksums (" + hashType + "): ";
-                String pad = "";
-                for (int j = 0; j < title.length(); j++) {
-                    pad += " ";
-                }
+    }
 
-                System.out.println(title + "Calculated " + hash);
-                System.out.println(pad + String.format("%11s", "Target ") + targetHash);
-            } catch (Exception e) {
-                e.printStackTrace();
+    private static long chunkLength(DownloadEntry dwe) {
+        return dwe.getRange().getRangeEnd() - dwe.getRange().getRangeStart() + 1;
+    }
+
+    /**
+     * Fetches the range of the entry into its chunk file, resuming from the length of the file when a response
+     * ends early.
+     *
+     * @return false if the entry failed too many times in a row without writing anything
+     */
+    private boolean fetchChunk(DownloadEntry dwe) {
+        final File store = dwe.getStore();
+        final Range range = dwe.getRange();
+        final long length = chunkLength(dwe);
+        int attempts = 0;
+        long written;
+        boolean retry = false;
+        String error = null;
+        while ((written = store.length()) < length) {
+            if (retry) {
+                dwe.getMetrics().onRetry();
+                System.out.println("\nRetrying <" + dwe.getId() + "> from offset " + (range.getRangeStart() + written) +
+                        (error != null ? " after: " + error : ""));
+            }
+            retry = true;
+            Request request = new Request(url)
+                    .netInterface(dwe.getNetworkInterface())
+                    .tracker(dwe.getTracker()).http2(http2)
+                    .metrics(dwe.getMetrics());
+            if (written > 0) {
+                request.append(store);
+            } else {
+                request.out(store);
+            }
+            request.header("Range", new Range(range.getRangeStart() + written, range.getRangeEnd()).toString());
+            request.limiter(dwe.getLimiter());
+            if (inflated != null) {
+                request.header("Accept-Encoding", "gzip, deflate").decode(false);
+            }
+            error = null;
+            try {
+                request.send();
+            } catch (IOException e) {
+                error = e.getMessage();
+            }
+            if (store.length() > written) {
+                attempts = 0;
+            } else if (++attempts >= MAX_ATTEMPTS) {
+                return false;
             }
         }
+        return true;
+    }
+
+    private void monitor(Set<Map.Entry<String, DownloadEntry>> entries) throws InterruptedException {
+        new ProgressRenderer(entries, refreshRate, true).render();
+    }
+
+    public enum OutputMode {
+        /**
+         * Every entry writes its range into the preallocated output file.
+         */
+        DIRECT,
+        /**
+         * Every entry writes its range into a temporary chunk file, chunks are merged at the end.
+         */
+        CHUNKS
+    }
+
+    public enum Engine {
+        /**
+         * Every entry runs its requests on its own thread with blocking sockets.
+         */
+        BLOCKING,
+        /**
+         * All the connections are multiplexed on a single thread with non-blocking sockets.
+         */
+        NIO
+    }
+
+    public enum ThreadMode {
+        /**
+         * A cached pool of platform threads, one per connection.
+         */
+        PLATFORM,
+        /**
+         * One virtual thread per task (Java 21+), blocking reads and sleeps release their carrier thread.
+         */
+        VIRTUAL
+    }
+
+    public enum Transport {
+        /**
+         * Every connection is a socket of its own speaking HTTP/1.1.
+         */
+        HTTP1,
+        /**
+         * The connections of an entry are streams of a single HTTP/2 connection, opened with prior knowledge.
+         */
+        H2C
     }
 
 }
@@ -0,0 +1,166 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import com.github.sofiman.smartdownloader.utils.Histogram;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the figures of the connections of an entry: requests, retries, time spent waiting for the
+ * limiter, and the time taken to connect, to receive the response and by the reads which stalled.
+ */
+public class EntryMetrics implements EntryMetricsMXBean {
+
+    /**
+     * A read waiting longer than this for data is counted as a stall, in nanoseconds.
+     */
+    public static final long STALL_THRESHOLD = 10000000L;
+
+    private final DownloadEntry entry;
+    private final Histogram timeToFirstByte = new Histogram();
+    private final Histogram connectTime = new Histogram();
+    private final Histogram stalls = new Histogram();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder throttleSleep = new LongAdder();
+
+    EntryMetrics(DownloadEntry entry) {
+        this.entry = entry;
+    }
+
+    void onRequest() {
+        requests.increment();
+    }
+
+    void onRetry() {
+        retries.increment();
+    }
+
+    void onConnect(long nanos) {
+        connectTime.record(nanos);
+    }
+
+    /**
+     * Records the time between sending the request and receiving the first byte of the response.
+     */
+    void onFirstByte(long nanos) {
+        timeToFirstByte.record(nanos);
+    }
+
+    /**
+     * Records the time spent waiting for data, only if it is a stall.
+     */
+    void onWait(long nanos) {
+        if (nanos >= STALL_THRESHOLD) stalls.record(nanos);
+    }
+
+    void onThrottleSleep(long nanos) {
+        throttleSleep.add(nanos);
+    }
+
+    /**
+     * Returns a stream recording how long every read of the given one waited for data.
+     */
+    InputStream meter(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                long start = System.nanoTime();
+                int b = super.read();
+                onWait(System.nanoTime() - start);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                long start = System.nanoTime();
+                int n = super.read(b, off, len);
+                onWait(System.nanoTime() - start);
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public String getEntry() {
+        return entry.getId();
+    }
+
+    @Override
+    public String getNetworkInterface() {
+        return entry.getNetworkInterface() != null ? entry.getNetworkInterface().getName() : "";
+    }
+
+    @Override
+    public long getBytes() {
+        return entry.getTracker().getDownloaded();
+    }
+
+    /**
+     * Returns the smoothed throughput in bytes per second.
+     */
+    @Override
+    public long getThroughput() {
+        return entry.getTracker().getSpeed();
+    }
+
+    @Override
+    public int getConnections() {
+        return entry.getTracker().getConnections();
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * Returns the time spent waiting for the limiter, in milliseconds.
+     */
+    @Override
+    public long getThrottleSleep() {
+        return throttleSleep.sum() / 1000000;
+    }
+
+    @Override
+    public Histogram.Summary getTimeToFirstByte() {
+        return timeToFirstByte.summarize();
+    }
+
+    @Override
+    public Histogram.Summary getConnectTime() {
+        return connectTime.summarize();
+    }
+
+    @Override
+    public Histogram.Summary getStalls() {
+        return stalls.summarize();
+    }
+
+    Histogram getTimeToFirstByteHistogram() {
+        return timeToFirstByte;
+    }
+
+    Histogram getConnectTimeHistogram() {
+        return connectTime;
+    }
+
+    Histogram getStallHistogram() {
+        return stalls;
+    }
+
+    long getThrottleSleepNanos() {
+        return throttleSleep.sum();
+    }
+
+    DownloadEntry getDownloadEntry() {
+        return entry;
+    }
+}
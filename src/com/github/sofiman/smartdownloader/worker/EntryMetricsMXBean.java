@@ -0,0 +1,31 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import com.github.sofiman.smartdownloader.utils.Histogram;
+
+/**
+ * The metrics of an entry as seen over JMX, the durations are in milliseconds.
+ */
+public interface EntryMetricsMXBean {
+
+    String getEntry();
+
+    String getNetworkInterface();
+
+    long getBytes();
+
+    long getThroughput();
+
+    int getConnections();
+
+    long getRequests();
+
+    long getRetries();
+
+    long getThrottleSleep();
+
+    Histogram.Summary getTimeToFirstByte();
+
+    Histogram.Summary getConnectTime();
+
+    Histogram.Summary getStalls();
+}
@@ -0,0 +1,114 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import com.github.sofiman.smartdownloader.http2.Http2Connection;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps a single HTTP/2 connection per route, so every request of a network interface to the host
+ * is a stream of the same connection instead of a socket of its own.
+ */
+public class Http2Client {
+
+    private static final Http2Client SHARED = new Http2Client(ConnectionPool.shared());
+
+    private final ConnectionPool pool;
+    private final Map<ConnectionPool.Route, FutureTask<Http2Connection>> connections;
+
+    /**
+     * @param pool opens the sockets of the connections
+     */
+    public Http2Client(ConnectionPool pool) {
+        this.pool = pool;
+        this.connections = new HashMap<>();
+    }
+
+    public static Http2Client shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the connection of the route, a new one is opened if the previous one is shutting down or could
+     * not be opened. The connection is opened outside of the lock of the client, so a slow handshake only
+     * keeps the requests of its own route waiting.
+     */
+    public Http2Connection connection(ConnectionPool.Route route) throws IOException {
+        if (route.isSecure()) {
+            throw new IOException("HTTP/2 is only supported over plain HTTP (h2c)");
+        }
+        FutureTask<Http2Connection> task;
+        boolean opener = false;
+        synchronized (this) {
+            task = connections.get(route);
+            // A connection which received GOAWAY still finishes its streams, the server closes it afterwards
+            if (task == null || task.isDone() && !isUsable(task)) {
+                task = new FutureTask<>(() -> open(route));
+                connections.put(route, task);
+                opener = true;
+            }
+        }
+        if (opener) {
+            task.run();
+        }
+        try {
+            Http2Connection connection = task.get();
+            if (opener && !isCurrent(route, task)) {
+                // The client was closed while the connection was being opened
+                connection.close();
+                throw new IOException("The HTTP/2 client was closed");
+            }
+            return connection;
+        } catch (ExecutionException e) {
+            synchronized (this) {
+                connections.remove(route, task);
+            }
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private Http2Connection open(ConnectionPool.Route route) throws IOException {
+        Socket socket = pool.connect(route);
+        try {
+            return Http2Connection.open(socket);
+        } catch (IOException e) {
+            ConnectionPool.close(socket);
+            throw e;
+        }
+    }
+
+    private synchronized boolean isCurrent(ConnectionPool.Route route, FutureTask<Http2Connection> task) {
+        return connections.get(route) == task;
+    }
+
+    private static boolean isUsable(FutureTask<Http2Connection> task) {
+        try {
+            return task.get().isUsable();
+        } catch (ExecutionException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes every open connection, those still being opened are closed once open.
+     */
+    public synchronized void close() {
+        for (FutureTask<Http2Connection> task : connections.values()) {
+            if (!task.isDone()) continue;
+            try {
+                task.get().close();
+            } catch (ExecutionException | InterruptedException ignored) {
+            }
+        }
+        connections.clear();
+    }
+}
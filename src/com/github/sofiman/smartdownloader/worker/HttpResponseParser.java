@@ -0,0 +1,384 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Parses the head of an HTTP/1.x response one byte at a time, so the reads may end anywhere, even in the
+ * middle of the blank line. The parser stops right after the head: whatever follows in the read belongs
+ * to the body and is left untouched.
+ * <p>
+ * Only the headers the downloader needs are decoded, straight from the bytes into fields. No string is
+ * created for the others, unless a map is given to collect every header.
+ */
+public class HttpResponseParser {
+
+    public static final int MAX_HEAD_SIZE = 64 * 1024;
+    private static final int MAX_VALUE_SIZE = 8 * 1024;
+
+    private static final int VERSION = 0, CODE = 1, REASON = 2, STATUS_END = 3, LINE_START = 4, NAME = 5,
+            VALUE = 6, BLANK = 7, COMPLETE = 8;
+
+    private static final byte[] CONTENT_LENGTH = ascii("content-length");
+    private static final byte[] CONTENT_RANGE = ascii("content-range");
+    private static final byte[] CONTENT_ENCODING = ascii("content-encoding");
+    private static final byte[] TRANSFER_ENCODING = ascii("transfer-encoding");
+    private static final byte[] CONNECTION = ascii("connection");
+    private static final byte[] IDENTITY = ascii("identity");
+    private static final byte[] GZIP = ascii("gzip");
+    private static final byte[] DEFLATE = ascii("deflate");
+    private static final byte[] CHUNKED = ascii("chunked");
+    private static final byte[] CLOSE = ascii("close");
+    private static final byte[] KEEP_ALIVE = ascii("keep-alive");
+    private static final byte[] BYTES = ascii("bytes");
+
+    private final byte[] name = new byte[256];
+    private byte[] value = new byte[256];
+    private int state, size, nameLength, valueLength, major, minor;
+    private boolean nameOverflow;
+    private Map<String, String> headers;
+
+    private int statusCode;
+    private long contentLength, rangeStart, rangeEnd, rangeTotal;
+    private String contentEncoding, transferEncoding;
+    private boolean close, keepAlive;
+
+    public HttpResponseParser() {
+        reset();
+    }
+
+    /**
+     * Forgets the previous response, the parser can read the next one of the connection.
+     */
+    public void reset() {
+        state = VERSION;
+        size = nameLength = valueLength = major = minor = 0;
+        nameOverflow = false;
+        headers = null;
+        statusCode = -1;
+        contentLength = rangeStart = rangeEnd = rangeTotal = -1;
+        contentEncoding = transferEncoding = null;
+        close = keepAlive = false;
+    }
+
+    /**
+     * Puts every header of the response into the given map as well.
+     */
+    public void collect(Map<String, String> headers) {
+        this.headers = headers;
+    }
+
+    /**
+     * Reads the bytes of the head from the buffer, its position is then at the first byte of the body.
+     *
+     * @return true if the head is complete
+     */
+    public boolean parse(ByteBuffer buffer) throws IOException {
+        while (state != COMPLETE && buffer.hasRemaining()) {
+            accept(buffer.get());
+        }
+        return state == COMPLETE;
+    }
+
+    /**
+     * Reads the bytes of the head from the array.
+     *
+     * @return the number of bytes which belong to the head, the others are the start of the body
+     */
+    public int parse(byte[] b, int off, int len) throws IOException {
+        int i = off;
+        while (state != COMPLETE && i < off + len) {
+            accept(b[i++]);
+        }
+        return i - off;
+    }
+
+    public boolean isComplete() {
+        return state == COMPLETE;
+    }
+
+    private void accept(byte b) throws IOException {
+        if (++size > MAX_HEAD_SIZE) {
+            throw new IOException("Response headers too large");
+        }
+        switch (state) {
+            case VERSION:
+                // HTTP/x.y
+                int at = size - 1;
+                if (b == ' ' && at == 8) {
+                    state = CODE;
+                    statusCode = 0;
+                } else if (at < 5 ? b != "HTTP/".charAt(at) : at == 6 ? b != '.' : at > 7 || b < '0' || b > '9') {
+                    throw new IOException("Invalid status line");
+                } else if (at == 5) {
+                    major = b - '0';
+                } else if (at == 7) {
+                    minor = b - '0';
+                }
+                break;
+            case CODE:
+                if (b >= '0' && b <= '9' && statusCode < 1000) {
+                    statusCode = statusCode * 10 + (b - '0');
+                } else if (b == ' ' && statusCode >= 100) {
+                    state = REASON;
+                } else if (b == '\r' && statusCode >= 100) {
+                    state = STATUS_END;
+                } else if (b == '\n' && statusCode >= 100) {
+                    state = LINE_START;
+                } else {
+                    throw new IOException("Invalid status code");
+                }
+                break;
+            case REASON:
+                if (b == '\n') state = LINE_START;
+                break;
+            case STATUS_END:
+                if (b != '\n') throw new IOException("Invalid line ending");
+                state = LINE_START;
+                break;
+            case LINE_START:
+                if (b == '\r') {
+                    state = BLANK;
+                } else if (b == '\n') {
+                    state = COMPLETE;
+                } else {
+                    nameLength = valueLength = 0;
+                    nameOverflow = false;
+                    state = NAME;
+                    name(b);
+                }
+                break;
+            case BLANK:
+                // The blank line ending the head
+                if (b != '\n') throw new IOException("Invalid line ending");
+                state = COMPLETE;
+                break;
+            case NAME:
+                if (b == ':') {
+                    state = VALUE;
+                } else if (b == '\n') {
+                    // A line without any colon is ignored
+                    state = LINE_START;
+                } else {
+                    name(b);
+                }
+                break;
+            case VALUE:
+                if (b == '\n') {
+                    header();
+                    state = LINE_START;
+                } else if (b != '\r' && (valueLength > 0 || (b != ' ' && b != '\t'))) {
+                    if (valueLength == value.length) {
+                        if (value.length == MAX_VALUE_SIZE) throw new IOException("Response header too large");
+                        byte[] grown = new byte[Math.min(MAX_VALUE_SIZE, value.length * 2)];
+                        System.arraycopy(value, 0, grown, 0, valueLength);
+                        value = grown;
+                    }
+                    value[valueLength++] = b;
+                }
+                break;
+        }
+    }
+
+    private void name(byte b) {
+        if (nameLength < name.length) {
+            // Names are compared in lower case
+            name[nameLength++] = b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+        } else {
+            nameOverflow = true;
+        }
+    }
+
+    private void header() throws IOException {
+        while (valueLength > 0 && (value[valueLength - 1] == ' ' || value[valueLength - 1] == '\t')) {
+            valueLength--;
+        }
+        if (headers != null) {
+            headers.put(new String(name, 0, nameLength, StandardCharsets.ISO_8859_1),
+                    new String(value, 0, valueLength, StandardCharsets.ISO_8859_1));
+        }
+        if (nameOverflow) return;
+        if (is(CONTENT_LENGTH)) {
+            contentLength = number(0, valueLength);
+            if (contentLength < 0) throw new IOException("Invalid Content-Length");
+        } else if (is(CONTENT_RANGE)) {
+            contentRange();
+        } else if (is(CONTENT_ENCODING)) {
+            contentEncoding = encoding();
+        } else if (is(TRANSFER_ENCODING)) {
+            transferEncoding = encoding();
+        } else if (is(CONNECTION)) {
+            close = has(CLOSE);
+            keepAlive = has(KEEP_ALIVE);
+        }
+    }
+
+    /**
+     * Reads "bytes start-end/total", the total may be "*".
+     */
+    private void contentRange() throws IOException {
+        int i = 0;
+        if (!matches(BYTES, 0, Math.min(valueLength, BYTES.length))) throw new IOException("Invalid Content-Range");
+        i += BYTES.length;
+        while (i < valueLength && value[i] == ' ') i++;
+        int dash = indexOf('-', i), slash = indexOf('/', i);
+        if (dash < 0 || slash < dash) throw new IOException("Invalid Content-Range");
+        rangeStart = number(i, dash);
+        rangeEnd = number(dash + 1, slash);
+        rangeTotal = slash + 2 == valueLength && value[slash + 1] == '*' ? -1 : number(slash + 1, valueLength);
+        if (rangeStart < 0 || rangeEnd < rangeStart) throw new IOException("Invalid Content-Range");
+    }
+
+    /**
+     * Returns a constant for the usual codings, so that no string is created for them.
+     */
+    private String encoding() {
+        if (matches(IDENTITY, 0, valueLength)) return null;
+        if (matches(GZIP, 0, valueLength)) return "gzip";
+        if (matches(DEFLATE, 0, valueLength)) return "deflate";
+        if (matches(CHUNKED, 0, valueLength)) return "chunked";
+        return new String(value, 0, valueLength, StandardCharsets.ISO_8859_1);
+    }
+
+    private long number(int from, int to) throws IOException {
+        while (from < to && value[from] == ' ') from++;
+        while (to > from && value[to - 1] == ' ') to--;
+        if (from == to || to - from > 18) throw new IOException("Invalid number in header");
+        long n = 0;
+        for (int i = from; i < to; i++) {
+            if (value[i] < '0' || value[i] > '9') throw new IOException("Invalid number in header");
+            n = n * 10 + (value[i] - '0');
+        }
+        return n;
+    }
+
+    private int indexOf(char c, int from) {
+        for (int i = from; i < valueLength; i++) {
+            if (value[i] == c) return i;
+        }
+        return -1;
+    }
+
+    private boolean is(byte[] expected) {
+        if (nameLength != expected.length) return false;
+        for (int i = 0; i < nameLength; i++) {
+            if (name[i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the value between the offsets is the token, ignoring case.
+     */
+    private boolean matches(byte[] token, int from, int to) {
+        if (to - from != token.length) return false;
+        for (int i = 0; i < token.length; i++) {
+            byte b = value[from + i];
+            if ((b >= 'A' && b <= 'Z' ? b + 32 : b) != token[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the comma separated list of the value contains the token.
+     */
+    private boolean has(byte[] token) {
+        int from = 0;
+        while (from <= valueLength) {
+            int to = indexOf(',', from);
+            if (to < 0) to = valueLength;
+            int start = from, end = to;
+            while (start < end && value[start] == ' ') start++;
+            while (end > start && value[end - 1] == ' ') end--;
+            if (matches(token, start, end)) return true;
+            from = to + 1;
+        }
+        return false;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Fills the parser with the headers of a response which was not read by it (an HTTP/2 response).
+     */
+    public void header(String name, String value) throws IOException {
+        state = COMPLETE;
+        if (":status".equals(name)) {
+            statusCode = Integer.parseInt(value);
+            major = 2;
+            return;
+        }
+        byte[] n = name.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] v = value.getBytes(StandardCharsets.ISO_8859_1);
+        nameLength = 0;
+        nameOverflow = false;
+        for (byte b : n) name(b);
+        if (v.length > this.value.length) this.value = new byte[v.length];
+        System.arraycopy(v, 0, this.value, 0, v.length);
+        valueLength = v.length;
+        header();
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Returns the length of the body, -1 if the response did not give it.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public long getRangeStart() {
+        return rangeStart;
+    }
+
+    /**
+     * Returns the length of the whole resource given by the Content-Range, -1 if unknown.
+     */
+    public long getRangeTotal() {
+        return rangeTotal;
+    }
+
+    /**
+     * Returns the content coding of the body, null for identity.
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * Returns the transfer coding of the body, null for identity.
+     */
+    public String getTransferEncoding() {
+        return transferEncoding;
+    }
+
+    /**
+     * Returns true if the server lets the connection open after the response.
+     */
+    public boolean isKeepAlive() {
+        if (close) return false;
+        return keepAlive || major > 1 || (major == 1 && minor >= 1);
+    }
+
+    /**
+     * Checks that the response answers a range request starting at the given offset: a partial response
+     * starting there, or the whole resource if the offset is 0.
+     */
+    public void expectRange(long start) throws IOException {
+        if (statusCode == 206) {
+            if (rangeStart != start) {
+                throw new IOException("Unexpected content range: " + rangeStart + "-" + rangeEnd +
+                        ", expected bytes from " + start);
+            }
+        } else if (statusCode != 200 || start != 0) {
+            throw new IOException("Unexpected response to the range request: " + statusCode);
+        }
+    }
+}
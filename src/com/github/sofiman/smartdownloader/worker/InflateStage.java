@@ -0,0 +1,227 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates the output file into another file while it is downloaded, so the decompression runs on its own
+ * thread next to the network reads instead of after them. The compressed stream is recognized from its first
+ * bytes: gzip (with any number of members), zlib, or raw deflate.
+ */
+public class InflateStage extends PrefixStage {
+
+    private static final int OUTPUT_SIZE = 256 * 1024;
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int GZIP_TRAILER = 8;
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+    private static final int DETECT = 0, HEADER = 1, DATA = 2, TRAILER = 3, NEXT = 4, END = 5;
+
+    private final File target;
+    private final boolean raw;
+    private final CRC32 crc = new CRC32();
+    private final byte[] output = new byte[OUTPUT_SIZE];
+    private OutputStream out;
+    private Inflater inflater;
+    private boolean gzip;
+    private int state = DETECT;
+    private byte[] pending = new byte[OUTPUT_SIZE];
+    private int pendingLength;
+    private long inflated;
+
+    /**
+     * @param raw true if a stream which is neither gzip nor zlib is raw deflate (a deflate content coding),
+     *            otherwise it is not compressed and the stage fails
+     */
+    public InflateStage(FileChannel channel, LongSupplier frontier, long length, File target, boolean raw) {
+        super(channel, frontier, length);
+        this.target = target;
+        this.raw = raw;
+    }
+
+    @Override
+    protected void consume(ByteBuffer buffer) throws IOException {
+        if (out == null) {
+            out = new FileOutputStream(target);
+        }
+        // Java 8 inflaters only read arrays, the input waits in pending until it is inflated
+        int n = buffer.remaining();
+        if (pendingLength + n > pending.length) {
+            byte[] grown = new byte[Math.max(pending.length * 2, pendingLength + n)];
+            System.arraycopy(pending, 0, grown, 0, pendingLength);
+            pending = grown;
+        }
+        buffer.duplicate().get(pending, pendingLength, n);
+        pendingLength += n;
+        int used = process(pending, pendingLength);
+        System.arraycopy(pending, used, pending, 0, pendingLength - used);
+        pendingLength -= used;
+    }
+
+    /**
+     * Goes as far as the input allows.
+     *
+     * @return the number of bytes of the input which were used
+     */
+    private int process(byte[] input, int length) throws IOException {
+        int position = 0;
+        while (position < length) {
+            switch (state) {
+                case DETECT:
+                    if (length - position < 2) return position;
+                    detect(input[position] & 0xFF, input[position + 1] & 0xFF);
+                    break;
+                case HEADER:
+                    int header = gzipHeader(input, position, length);
+                    if (header < 0) {
+                        if (length - position > MAX_HEADER_SIZE) throw new IOException("Invalid gzip header");
+                        return position;
+                    }
+                    position += header;
+                    inflater.reset();
+                    crc.reset();
+                    state = DATA;
+                    break;
+                case DATA:
+                    position = length - inflate(input, position, length);
+                    if (inflater.finished()) {
+                        state = gzip ? TRAILER : END;
+                    }
+                    break;
+                case TRAILER:
+                    if (length - position < GZIP_TRAILER) return position;
+                    if (read32(input, position) != crc.getValue() ||
+                            read32(input, position + 4) != (inflater.getBytesWritten() & 0xFFFFFFFFL)) {
+                        throw new IOException("Corrupt gzip member: checksum or size mismatch");
+                    }
+                    position += GZIP_TRAILER;
+                    state = NEXT;
+                    break;
+                case NEXT:
+                    // Another member may follow, anything else is ignored like GZIPInputStream does
+                    if (length - position < 2) return position;
+                    state = (input[position] & 0xFF) == 0x1F && (input[position + 1] & 0xFF) == 0x8B ? HEADER : END;
+                    break;
+                default:
+                    return length;
+            }
+        }
+        return position;
+    }
+
+    private void detect(int b0, int b1) throws IOException {
+        if (b0 == 0x1F && b1 == 0x8B) {
+            gzip = true;
+            inflater = new Inflater(true);
+            state = HEADER;
+        } else if ((b0 & 0x0F) == 8 && ((b0 << 8) | b1) % 31 == 0) {
+            inflater = new Inflater(false);
+            state = DATA;
+        } else if (raw) {
+            inflater = new Inflater(true);
+            state = DATA;
+        } else {
+            throw new IOException("The download is not compressed with gzip or deflate");
+        }
+    }
+
+    /**
+     * Inflates the input until it is all used or the end of the compressed stream.
+     *
+     * @return the number of bytes of the input which were not used
+     */
+    private int inflate(byte[] input, int from, int to) throws IOException {
+        inflater.setInput(input, from, to - from);
+        try {
+            int n;
+            while (!inflater.finished()) {
+                n = inflater.inflate(output);
+                if (n > 0) {
+                    out.write(output, 0, n);
+                    if (gzip) crc.update(output, 0, n);
+                    inflated += n;
+                } else if (inflater.needsInput()) {
+                    break;
+                } else if (inflater.needsDictionary()) {
+                    throw new IOException("Compressed stream requires a preset dictionary");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed stream: " + e.getMessage(), e);
+        }
+        return inflater.getRemaining();
+    }
+
+    /**
+     * Returns the length of the gzip header at the offset, -1 if the input does not hold all of it yet.
+     */
+    private static int gzipHeader(byte[] input, int from, int to) throws IOException {
+        int i = from;
+        if (to - i < 10) return -1;
+        if ((input[i] & 0xFF) != 0x1F || (input[i + 1] & 0xFF) != 0x8B || input[i + 2] != 8) {
+            throw new IOException("Invalid gzip header");
+        }
+        int flags = input[i + 3] & 0xFF;
+        i += 10;
+        if ((flags & FEXTRA) != 0) {
+            if (to - i < 2) return -1;
+            i += 2 + ((input[i] & 0xFF) | (input[i + 1] & 0xFF) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            do {
+                if (i >= to) return -1;
+            } while (input[i++] != 0);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            do {
+                if (i >= to) return -1;
+            } while (input[i++] != 0);
+        }
+        if ((flags & FHCRC) != 0) {
+            i += 2;
+        }
+        return i > to ? -1 : i - from;
+    }
+
+    private static long read32(byte[] b, int i) {
+        return (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24;
+    }
+
+    @Override
+    protected void finish() throws IOException {
+        if (state != NEXT && state != END) {
+            throw new IOException("The compressed stream ended too soon");
+        }
+        if (out == null) {
+            new FileOutputStream(target).close();
+        }
+    }
+
+    @Override
+    protected void release() throws IOException {
+        if (inflater != null) {
+            inflater.end();
+        }
+        if (out != null) {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the number of decompressed bytes written so far.
+     */
+    public long getInflated() {
+        return inflated;
+    }
+
+    public File getTarget() {
+        return target;
+    }
+}
@@ -0,0 +1,240 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import com.github.sofiman.smartdownloader.utils.Histogram;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Publishes the metrics of the entries of a download while it runs: as MBeans on the platform MBean server,
+ * and in the Prometheus text format, in a file written again every second and/or served over HTTP on
+ * {@code /metrics}. The figures are only read when they are exported, the downloads never wait for it.
+ */
+public class MetricsExporter implements AutoCloseable {
+
+    public static final String DOMAIN = "com.github.sofiman.smartdownloader";
+    public static final long FILE_INTERVAL = 1000;
+    private static final String PREFIX = "smartdownloader_";
+
+    private final String download;
+    private final Collection<DownloadEntry> entries;
+    private final List<ObjectName> names = new ArrayList<>();
+    private final File file;
+    private final InetSocketAddress address;
+    private HttpServer server;
+    private Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * @param download the name of the download, given as a label to all the metrics
+     * @param file     where the metrics are written every second, null if they are not written
+     * @param address  where the metrics are served, null if they are not served
+     */
+    public MetricsExporter(String download, Collection<DownloadEntry> entries, File file, InetSocketAddress address) {
+        this.download = download;
+        this.entries = entries;
+        this.file = file;
+        this.address = address;
+    }
+
+    public void start(ThreadFactory threads) throws IOException {
+        register();
+        if (address != null) {
+            server = HttpServer.create(address, 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = format().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            System.out.println("Serving the metrics on http://" + address.getHostString() + ":" +
+                    server.getAddress().getPort() + "/metrics");
+        }
+        if (file != null) {
+            writer = threads.newThread(() -> {
+                try {
+                    while (!closed) {
+                        write();
+                        Thread.sleep(FILE_INTERVAL);
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            });
+            writer.start();
+        }
+    }
+
+    private void register() {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        for (DownloadEntry entry : entries) {
+            try {
+                ObjectName name = new ObjectName(DOMAIN + ":type=Entry,download=" + ObjectName.quote(download) +
+                        ",entry=" + ObjectName.quote(entry.getId()));
+                if (mbs.isRegistered(name)) {
+                    mbs.unregisterMBean(name);
+                }
+                mbs.registerMBean(entry.getMetrics(), name);
+                names.add(name);
+            } catch (Exception e) {
+                System.err.println("\nCould not register the metrics of " + entry.getId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Replaces the metrics file, through a temporary file so a reader never sees half of it.
+     */
+    private void write() {
+        try {
+            File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(format().getBytes(StandardCharsets.UTF_8));
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("\nCould not write the metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the metrics of all the entries in the Prometheus text format.
+     */
+    public String format() {
+        StringBuilder b = new StringBuilder(4096);
+        family(b, "bytes_total", "counter", "Bytes received by the network interface");
+        for (DownloadEntry entry : entries) {
+            sample(b, "bytes_total", entry, null, entry.getTracker().getDownloaded());
+        }
+        family(b, "requests_total", "counter", "Requests sent through the network interface");
+        for (DownloadEntry entry : entries) {
+            sample(b, "requests_total", entry, null, entry.getMetrics().getRequests());
+        }
+        family(b, "retries_total", "counter", "Requests sent again after a failure");
+        for (DownloadEntry entry : entries) {
+            sample(b, "retries_total", entry, null, entry.getMetrics().getRetries());
+        }
+        family(b, "throttle_sleep_seconds_total", "counter", "Time spent waiting for the rate limiter");
+        for (DownloadEntry entry : entries) {
+            sample(b, "throttle_sleep_seconds_total", entry, null, entry.getMetrics().getThrottleSleepNanos() / 1e9);
+        }
+        family(b, "connections", "gauge", "Connections currently open on the network interface");
+        for (DownloadEntry entry : entries) {
+            sample(b, "connections", entry, null, entry.getTracker().getConnections());
+        }
+        family(b, "throughput_bytes_per_second", "gauge", "Smoothed throughput of the network interface");
+        for (DownloadEntry entry : entries) {
+            sample(b, "throughput_bytes_per_second", entry, null, entry.getTracker().getSpeed());
+        }
+        family(b, "ttfb_seconds", "histogram", "Time between sending a request and the first byte of its response");
+        for (DownloadEntry entry : entries) {
+            histogram(b, "ttfb_seconds", entry, entry.getMetrics().getTimeToFirstByteHistogram());
+        }
+        family(b, "connect_seconds", "histogram", "Time taken to open a connection");
+        for (DownloadEntry entry : entries) {
+            histogram(b, "connect_seconds", entry, entry.getMetrics().getConnectTimeHistogram());
+        }
+        family(b, "stall_seconds", "histogram", "Reads which waited longer than " +
+                EntryMetrics.STALL_THRESHOLD / 1000000 + " ms for data");
+        for (DownloadEntry entry : entries) {
+            histogram(b, "stall_seconds", entry, entry.getMetrics().getStallHistogram());
+        }
+        return b.toString();
+    }
+
+    private static void family(StringBuilder b, String name, String type, String help) {
+        b.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        b.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private void histogram(StringBuilder b, String name, DownloadEntry entry, Histogram histogram) {
+        long cumulative = 0;
+        for (int i = 0; i < Histogram.getBucketCount(); i++) {
+            cumulative += histogram.getCount(i);
+            long bound = Histogram.getBound(i);
+            sample(b, name + "_bucket", entry, bound == Long.MAX_VALUE ? "+Inf" : number(bound / 1e9), cumulative);
+        }
+        sample(b, name + "_sum", entry, null, histogram.getSum() / 1e9);
+        sample(b, name + "_count", entry, null, cumulative);
+    }
+
+    private void sample(StringBuilder b, String name, DownloadEntry entry, String le, double value) {
+        b.append(PREFIX).append(name).append("{download=\"");
+        escape(b, download).append("\",entry=\"");
+        escape(b, entry.getId()).append("\",interface=\"");
+        escape(b, entry.getMetrics().getNetworkInterface()).append('"');
+        if (le != null) {
+            b.append(",le=\"").append(le).append('"');
+        }
+        b.append("} ").append(number(value)).append('\n');
+    }
+
+    private static String number(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) :
+                String.format(Locale.ROOT, "%s", value);
+    }
+
+    private static StringBuilder escape(StringBuilder b, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                b.append('\\').append(c);
+            } else if (c == '\n') {
+                b.append("\\n");
+            } else {
+                b.append(c);
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Stops serving the metrics, writes them a last time and unregisters the MBeans.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (writer != null) {
+            writer.interrupt();
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            write();
+        }
+        if (server != null) {
+            server.stop(0);
+        }
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : names) {
+            try {
+                mbs.unregisterMBean(name);
+            } catch (Exception ignored) {
+            }
+        }
+        names.clear();
+    }
+}
@@ -0,0 +1,293 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import com.github.sofiman.smartdownloader.utils.StringUtils;
+
+import java.util.*;
+
+/**
+ * The URLs serving the same file. Every request of an entry goes to the mirror it is expected to receive the most
+ * from: the throughput measured on the previous requests of the (mirror, entry) pair, shared with the requests of
+ * the entry already running on that mirror, since a server usually limits each client. Pairs which were never
+ * measured are tried first. A mirror is dropped once it failed several times in a row, or when it is far slower
+ * than the best one, even in the middle of a request: the requests are watched while they run and the ranges of
+ * a dropped mirror are handed to the others. The last mirror is always kept.
+ */
+public class MirrorSet {
+
+    /**
+     * The most bytes a single request asks for, so the ranges keep being shared between the mirrors.
+     */
+    public static final long DEFAULT_CHUNK = 4L * 1024 * 1024;
+    public static final int MAX_FAILURES = 3;
+    /**
+     * A mirror whose throughput is below this part of the best one is dropped.
+     */
+    public static final double SLOW_RATIO = 0.1;
+    public static final long INTERVAL = 1000;
+    private static final int MIN_SAMPLES = 2;
+    private static final double SMOOTHING = 0.3;
+
+    private final List<Mirror> mirrors = new ArrayList<>();
+    private final Map<Segment, Flight> flights = new HashMap<>();
+    private final long chunk;
+    private volatile boolean cancelled;
+
+    public MirrorSet(Collection<String> urls) {
+        this(urls, DEFAULT_CHUNK);
+    }
+
+    public MirrorSet(Collection<String> urls, long chunk) {
+        for (String url : urls) {
+            mirrors.add(new Mirror(url));
+        }
+        if (mirrors.isEmpty()) throw new IllegalArgumentException("No mirror");
+        this.chunk = chunk;
+    }
+
+    /**
+     * Checks the mirrors against the response of the first one to a HEAD request: a mirror is only kept if it
+     * serves the same length and the same validator (the ETag, or the Last-Modified date without it), so the
+     * ranges of the different mirrors belong to the same file.
+     *
+     * @return the number of mirrors kept
+     */
+    public int validate(long length, Map<String, String> reference, Http2Client http2, String acceptEncoding) {
+        String etag = reference.get("ETag"), modified = reference.get("Last-Modified");
+        for (Mirror mirror : mirrors.subList(1, mirrors.size())) {
+            String reason;
+            try {
+                if (http2 != null && !mirror.url.regionMatches(true, 0, "http:", 0, 5)) {
+                    reason = "HTTP/2 is only supported over plain HTTP";
+                } else {
+                    reason = mismatch(length, etag, modified, new Request(mirror.url).http2(http2)
+                            .header("Accept-Encoding", acceptEncoding).head());
+                }
+            } catch (Exception e) {
+                reason = e.getMessage();
+            }
+            if (reason != null) {
+                drop(mirror, reason);
+            }
+        }
+        int live = live().size();
+        System.out.println("Downloading from " + live + (live > 1 ? " mirrors" : " mirror"));
+        return live;
+    }
+
+    private static String mismatch(long length, String etag, String modified, Map<String, String> headers) {
+        String contentLength = headers.get("Content-Length");
+        if (contentLength == null || Long.parseLong(contentLength.trim()) != length) {
+            return "length " + contentLength + " instead of " + length;
+        }
+        if (etag != null) {
+            return etag.equals(headers.get("ETag")) ? null : "ETag " + headers.get("ETag") + " instead of " + etag;
+        }
+        if (modified != null && !modified.equals(headers.get("Last-Modified"))) {
+            return "modified on " + headers.get("Last-Modified") + " instead of " + modified;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the mirror of the next request of the entry, which fetches the given segment.
+     */
+    public synchronized Mirror pick(DownloadEntry entry, Segment segment) {
+        Mirror best = null;
+        double max = -1;
+        for (Mirror mirror : mirrors) {
+            if (mirror.dropped) continue;
+            Pair pair = mirror.pair(entry);
+            // A pair is measured by a single request before it gets more
+            double score = pair.samples > 0 ? pair.throughput / (pair.active + 1) :
+                    pair.active == 0 ? Double.MAX_VALUE : 0;
+            if (score > max) {
+                best = mirror;
+                max = score;
+            }
+        }
+        best.pair(entry).active++;
+        flights.put(segment, new Flight(best, segment.getCommitted(), System.nanoTime()));
+        return best;
+    }
+
+    /**
+     * Records the outcome of the request of the entry which fetched the segment.
+     */
+    public synchronized void report(DownloadEntry entry, Segment segment) {
+        Flight flight = flights.remove(segment);
+        if (flight == null) return;
+        Mirror mirror = flight.mirror;
+        long received = segment.getCommitted() - flight.committed, nanos = System.nanoTime() - flight.started;
+        Pair pair = mirror.pair(entry);
+        pair.active--;
+        if (received <= 0) {
+            if (++mirror.failures >= MAX_FAILURES) {
+                drop(mirror, mirror.failures + " failed requests in a row");
+            }
+            return;
+        }
+        mirror.failures = 0;
+        mirror.received += received;
+        double throughput = received * 1e9 / Math.max(1, nanos);
+        pair.throughput = pair.samples++ == 0 ? throughput : pair.throughput * (1 - SMOOTHING) + throughput * SMOOTHING;
+        dropSlow();
+    }
+
+    private void dropSlow() {
+        double best = 0;
+        for (Mirror mirror : mirrors) {
+            if (!mirror.dropped) best = Math.max(best, mirror.getThroughput());
+        }
+        for (Mirror mirror : mirrors) {
+            if (mirror.dropped || mirror.getSamples() < MIN_SAMPLES) continue;
+            double throughput = mirror.getThroughput();
+            if (throughput < best * SLOW_RATIO) {
+                drop(mirror, StringUtils.humanReadableByteCount((long) throughput, true) + "/s against " +
+                        StringUtils.humanReadableByteCount((long) best, true) + "/s for the best one");
+            }
+        }
+    }
+
+    /**
+     * Checks the running requests every interval until cancelled. A mirror whose request stalled or became far
+     * slower than the best one is dropped, the bytes its requests did not reserve yet are left to the other mirrors.
+     */
+    public void watch(RangeScheduler scheduler) {
+        try {
+            while (!cancelled) {
+                Thread.sleep(INTERVAL);
+                check(scheduler);
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private synchronized void check(RangeScheduler scheduler) {
+        long now = System.nanoTime();
+        double best = 0;
+        for (Mirror mirror : mirrors) {
+            if (!mirror.dropped) best = Math.max(best, mirror.getThroughput());
+        }
+        Map<Flight, Double> throughputs = new HashMap<>();
+        for (Map.Entry<Segment, Flight> entry : flights.entrySet()) {
+            Flight flight = entry.getValue();
+            // The first interval includes the connection and the time to the first byte
+            if (now - flight.started < 2 * INTERVAL * 1000000L) continue;
+            double throughput = (entry.getKey().getCommitted() - flight.committed) * 1e9 / (now - flight.started);
+            throughputs.put(flight, throughput);
+            best = Math.max(best, throughput);
+        }
+        for (Map.Entry<Flight, Double> entry : throughputs.entrySet()) {
+            double throughput = entry.getValue();
+            if (throughput < best * SLOW_RATIO) {
+                drop(entry.getKey().mirror, StringUtils.humanReadableByteCount((long) throughput, true) +
+                        "/s during a request against " + StringUtils.humanReadableByteCount((long) best, true) + "/s");
+            }
+        }
+        for (Map.Entry<Segment, Flight> entry : flights.entrySet()) {
+            if (entry.getValue().mirror.dropped) {
+                scheduler.truncate(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Stops watching the requests.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void drop(Mirror mirror, String reason) {
+        if (mirror.dropped || live().size() <= 1) return;
+        mirror.dropped = true;
+        System.out.println("\nDropping mirror " + mirror.url + ": " + reason);
+    }
+
+    private List<Mirror> live() {
+        List<Mirror> live = new ArrayList<>();
+        for (Mirror mirror : mirrors) {
+            if (!mirror.dropped) live.add(mirror);
+        }
+        return live;
+    }
+
+    public long getChunk() {
+        return chunk;
+    }
+
+    public synchronized List<Mirror> getMirrors() {
+        return new ArrayList<>(mirrors);
+    }
+
+    public static class Mirror {
+
+        private final String url;
+        private final Map<DownloadEntry, Pair> pairs = new HashMap<>();
+        private int failures;
+        private volatile long received;
+        private volatile boolean dropped;
+
+        private Mirror(String url) {
+            this.url = url;
+        }
+
+        private Pair pair(DownloadEntry entry) {
+            return pairs.computeIfAbsent(entry, e -> new Pair());
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public boolean isDropped() {
+            return dropped;
+        }
+
+        /**
+         * Returns the number of bytes written from the mirror.
+         */
+        public long getReceived() {
+            return received;
+        }
+
+        /**
+         * Returns the throughput of a request averaged over the entries which were measured, in bytes per second.
+         */
+        double getThroughput() {
+            double throughput = 0;
+            int measured = 0;
+            for (Pair pair : pairs.values()) {
+                if (pair.samples == 0) continue;
+                throughput += pair.throughput;
+                measured++;
+            }
+            return measured == 0 ? 0 : throughput / measured;
+        }
+
+        int getSamples() {
+            int samples = 0;
+            for (Pair pair : pairs.values()) {
+                samples += pair.samples;
+            }
+            return samples;
+        }
+    }
+
+    private static class Pair {
+        private int active, samples;
+        private double throughput;
+    }
+
+    private static class Flight {
+
+        private final Mirror mirror;
+        private final long committed, started;
+
+        private Flight(Mirror mirror, long committed, long started) {
+            this.mirror = mirror;
+            this.committed = committed;
+            this.started = started;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Downloads the segments of every entry over non-blocking sockets multiplexed by a single selector,
+ * so that many connections per network interface only cost one thread. Each connection is bound to the
+ * address of its entry's network interface, keeps its socket alive between segments when the server
+ * allows it, and writes the body straight into the output file at the segment offset.
+ */
+public class NioEngine implements Runnable {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long POLL_INTERVAL = 20;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final URL url;
+    private final FileChannel channel;
+    private final RangeScheduler scheduler;
+    private final Collection<DownloadEntry> entries;
+    private final int connections;
+    private final ByteBuffer buffer;
+    private final Set<Connection> open;
+    private final Queue<DownloadEntry> opening;
+    private final List<Connection> idle, throttled;
+    private String acceptEncoding = "identity";
+    private InetSocketAddress remote;
+    private Selector selector;
+
+    /**
+     * @param connections the number of connections opened by every entry at first
+     */
+    public NioEngine(URL url, FileChannel channel, RangeScheduler scheduler, Collection<DownloadEntry> entries, int connections) {
+        this.url = url;
+        this.channel = channel;
+        this.scheduler = scheduler;
+        this.entries = entries;
+        this.connections = Math.max(1, connections);
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.open = new HashSet<>();
+        this.opening = new ConcurrentLinkedQueue<>();
+        this.idle = new ArrayList<>();
+        this.throttled = new ArrayList<>();
+    }
+
+    /**
+     * Asks for the given content codings instead of identity, the bodies are then written as they are received.
+     */
+    public void withAcceptEncoding(String acceptEncoding) {
+        this.acceptEncoding = acceptEncoding;
+    }
+
+    /**
+     * Opens one more connection for the entry, can be called from any thread.
+     */
+    public void open(DownloadEntry entry) {
+        entry.getTracker().connect();
+        opening.add(entry);
+        Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        try (Selector selector = Selector.open()) {
+            this.selector = selector;
+            this.remote = new InetSocketAddress(InetAddress.getByName(url.getHost()),
+                    url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+            for (DownloadEntry entry : entries) {
+                entry.getTracker().onCopyStarted(0);
+                for (int i = 0; i < connections; i++) {
+                    open(entry);
+                }
+            }
+            DownloadEntry entry;
+            while (!Thread.currentThread().isInterrupted()) {
+                while ((entry = opening.poll()) != null) {
+                    Connection connection = new Connection(entry);
+                    open.add(connection);
+                    next(connection);
+                }
+                if (open.isEmpty()) break;
+                selector.select(timeout());
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        handle((Connection) key.attachment(), key);
+                    }
+                }
+                for (Connection connection : new ArrayList<>(throttled)) {
+                    if (connection.entry.getLimiter().getWaitTime(BUFFER_SIZE) == 0) {
+                        throttled.remove(connection);
+                        // The time spent waiting for the limiter is not a stall of the server
+                        long now = System.nanoTime();
+                        connection.entry.getMetrics().onThrottleSleep(now - connection.time);
+                        connection.time = now;
+                        connection.key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+                if (!idle.isEmpty()) {
+                    List<Connection> waiting = new ArrayList<>(idle);
+                    idle.clear();
+                    for (Connection connection : waiting) {
+                        next(connection);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The selector or the address of the server failed, none of the connections can go on
+            System.err.println("\nThe NIO engine stopped: " + e);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            for (Connection connection : open) {
+                close(connection);
+            }
+            for (DownloadEntry entry : entries) {
+                entry.getTracker().finish();
+            }
+        }
+    }
+
+    private void handle(Connection connection, SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                if (connection.socket.finishConnect()) {
+                    connection.entry.getMetrics().onConnect(System.nanoTime() - connection.time);
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            } else if (key.isWritable()) {
+                connection.socket.write(connection.request);
+                if (!connection.request.hasRemaining()) {
+                    connection.time = System.nanoTime();
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (key.isReadable()) {
+                read(connection);
+            }
+        } catch (IOException e) {
+            fail(connection, e);
+        }
+    }
+
+    /**
+     * Gives the connection its next segment, or parks it until the scheduler may have one.
+     */
+    private void next(Connection connection) {
+        Segment segment = scheduler.next(connection.entry);
+        if (segment == null) {
+            if (scheduler.isDrained()) {
+                stop(connection);
+            } else {
+                if (connection.key != null && connection.key.isValid()) {
+                    connection.key.interestOps(0);
+                }
+                idle.add(connection);
+            }
+            return;
+        }
+        connection.segment = segment;
+        connection.attempts = 0;
+        send(connection);
+    }
+
+    /**
+     * Requests what remains of the segment, on the same socket if it is still open.
+     */
+    private void send(Connection connection) {
+        Segment segment = connection.segment;
+        segment.rewind();
+        scheduler.bound(segment);
+        connection.committed = segment.getCommitted();
+        connection.parser.reset();
+        connection.decoder.reset();
+        connection.body = -1;
+        connection.chunked = false;
+        connection.answered = false;
+        connection.limited = false;
+        connection.entry.getMetrics().onRequest();
+        String host = url.getHost() + (url.getPort() == -1 ? "" : ":" + url.getPort());
+        connection.request = ByteBuffer.wrap(("GET " + (url.getFile().isEmpty() ? "/" : url.getFile()) + " HTTP/1.1\r\n" +
+                "Host: " + host + "\r\n" +
+                "Range: " + segment.request() + "\r\n" +
+                "Accept: */*\r\n" +
+                "Accept-Encoding: " + acceptEncoding + "\r\n" +
+                "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        try {
+            if (connection.socket != null && connection.socket.isOpen()) {
+                connection.reused = true;
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.reused = false;
+            SocketChannel socket = SocketChannel.open();
+            connection.socket = socket;
+            socket.configureBlocking(false);
+            if (connection.entry.getNetworkInterface() != null) {
+                socket.bind(new InetSocketAddress(Request.localAddress(connection.entry.getNetworkInterface(), remote.getAddress()), 0));
+            }
+            connection.time = System.nanoTime();
+            boolean connected = socket.connect(remote);
+            connection.key = socket.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, connection);
+        } catch (IOException e) {
+            fail(connection, e);
+        }
+    }
+
+    /**
+     * Returns how long the selector may wait: until the next poll of the idle connections, or until the
+     * limiter of a throttled connection is refilled. 0 waits for the sockets only.
+     */
+    private long timeout() {
+        long timeout = idle.isEmpty() ? Long.MAX_VALUE : POLL_INTERVAL;
+        for (Connection connection : throttled) {
+            long wait = connection.entry.getLimiter().getWaitTime(BUFFER_SIZE);
+            timeout = Math.min(timeout, Math.max(1, (wait + 999999) / 1000000));
+        }
+        return timeout == Long.MAX_VALUE ? 0 : timeout;
+    }
+
+    private void read(Connection connection) throws IOException {
+        RateLimiter limiter = connection.entry.getLimiter();
+        long available = limiter != null ? limiter.tryAcquire(buffer.capacity()) : buffer.capacity();
+        if (available <= 0) {
+            connection.key.interestOps(0);
+            throttled.add(connection);
+            return;
+        }
+        buffer.clear();
+        if (available < buffer.capacity()) {
+            buffer.limit((int) available);
+        }
+        int len = connection.socket.read(buffer);
+        if (limiter != null && len < available) {
+            limiter.refund(available - Math.max(len, 0));
+        }
+        // Until the head, the time since the request is the time to first byte, then the wait since the last read,
+        // which is spent in the limiter if it gave less than the buffer
+        long now = System.nanoTime();
+        if (connection.limited) {
+            connection.entry.getMetrics().onThrottleSleep(now - connection.time);
+        } else if (connection.answered) {
+            connection.entry.getMetrics().onWait(now - connection.time);
+        } else if (len > 0) {
+            connection.entry.getMetrics().onFirstByte(now - connection.time);
+            connection.answered = true;
+        }
+        connection.time = now;
+        connection.limited = available < buffer.capacity();
+        if (len == -1) {
+            // Without a length, the body ends with the connection
+            if (connection.parser.isComplete() && connection.body == -1 && !connection.chunked) {
+                proceed(connection, false);
+            } else {
+                fail(connection, new IOException("Connection closed by the server"));
+            }
+            return;
+        }
+        buffer.flip();
+        if (!connection.parser.isComplete()) {
+            if (!connection.parser.parse(buffer)) return;
+            checkHead(connection);
+        }
+        if (connection.chunked) {
+            readChunks(connection);
+        } else if (buffer.hasRemaining()) {
+            if (connection.body >= 0 && buffer.remaining() > connection.body) {
+                buffer.limit(buffer.position() + (int) connection.body);
+            }
+            int received = buffer.remaining();
+            int written = connection.segment.write(channel, buffer);
+            if (connection.body >= 0) {
+                connection.body -= received;
+            }
+            connection.entry.getTracker().onCopyProgress(written, 0);
+        }
+        if (connection.body == 0 || connection.decoder.isEnded()) {
+            proceed(connection, connection.keepAlive);
+        } else if (connection.segment.remaining() == 0) {
+            // The segment was shortened, the rest of the body belongs to another connection
+            proceed(connection, false);
+        }
+    }
+
+    /**
+     * Checks that the response answers the range request with a body which can be written as it is.
+     */
+    private void checkHead(Connection connection) throws IOException {
+        HttpResponseParser parser = connection.parser;
+        parser.expectRange(connection.committed);
+        if (parser.getContentEncoding() != null && "identity".equals(acceptEncoding)) {
+            throw new IOException("Content Encoding not supported: " + parser.getContentEncoding());
+        }
+        String transferEncoding = parser.getTransferEncoding();
+        if (transferEncoding != null && !"chunked".equals(transferEncoding)) {
+            throw new IOException("Transfer Encoding not supported: " + transferEncoding);
+        }
+        connection.chunked = transferEncoding != null;
+        connection.body = connection.chunked ? -1 : parser.getContentLength();
+        connection.keepAlive = (connection.body >= 0 || connection.chunked) && parser.isKeepAlive();
+    }
+
+    /**
+     * Writes the data of the chunks in the buffer, the framing around them is skipped.
+     */
+    private void readChunks(Connection connection) throws IOException {
+        ChunkedDecoder decoder = connection.decoder;
+        while (buffer.hasRemaining() && !decoder.isEnded() && connection.segment.remaining() > 0) {
+            if (decoder.getRemaining() == 0) {
+                decoder.frame(buffer.get());
+                continue;
+            }
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + (int) Math.min(buffer.remaining(), decoder.getRemaining()));
+            int received = buffer.remaining();
+            int written = connection.segment.write(channel, buffer);
+            decoder.consume(received);
+            // What the segment did not take belongs to another connection
+            buffer.position(buffer.limit()).limit(limit);
+            connection.entry.getTracker().onCopyProgress(written, 0);
+        }
+        // The trailers may follow the last byte of the segment in the same read
+        while (buffer.hasRemaining() && !decoder.isEnded() && decoder.getRemaining() == 0) {
+            decoder.frame(buffer.get());
+        }
+    }
+
+    /**
+     * Moves on once the response ended: the segment is requested again if the server sent less than
+     * expected, otherwise the connection takes the next one.
+     */
+    private void proceed(Connection connection, boolean reuse) {
+        if (!reuse) {
+            close(connection);
+        }
+        if (connection.segment.isComplete()) {
+            connection.segment = null;
+            next(connection);
+        } else {
+            retry(connection);
+        }
+    }
+
+    private void fail(Connection connection, IOException e) {
+        close(connection);
+        if (connection.reused && !connection.parser.isComplete()) {
+            // The server closed the idle connection, this attempt does not count
+            send(connection);
+            return;
+        }
+        // The connections are expected to fail once in a while, the segment is simply requested again
+        System.err.println("\n<" + connection.entry.getId() + "> failed at offset " + connection.segment.getCommitted() +
+                ": " + e.getMessage());
+        retry(connection);
+    }
+
+    /**
+     * Requests the segment again, unless the connection failed too many times in a row without
+     * writing anything, the segment is then left to the other connections.
+     */
+    private void retry(Connection connection) {
+        Segment segment = connection.segment;
+        if (segment.getCommitted() > connection.committed) {
+            connection.attempts = 0;
+        } else if (++connection.attempts >= MAX_ATTEMPTS) {
+            scheduler.release(segment);
+            connection.segment = null;
+            stop(connection);
+            return;
+        }
+        connection.entry.getMetrics().onRetry();
+        send(connection);
+    }
+
+    private void stop(Connection connection) {
+        close(connection);
+        if (open.remove(connection)) {
+            connection.entry.getTracker().disconnect();
+        }
+    }
+
+    private void close(Connection connection) {
+        throttled.remove(connection);
+        if (connection.socket != null) {
+            try {
+                connection.socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static final class Connection {
+
+        private final DownloadEntry entry;
+        private final HttpResponseParser parser = new HttpResponseParser();
+        private final ChunkedDecoder decoder = new ChunkedDecoder();
+        private SocketChannel socket;
+        private SelectionKey key;
+        private Segment segment;
+        private ByteBuffer request;
+        private int attempts;
+        private long committed, body;
+        /**
+         * When the connection started to connect, sent its request, last read or was throttled, in nanoseconds.
+         */
+        private long time;
+        private boolean keepAlive, reused, chunked, answered, limited;
+
+        private Connection(DownloadEntry entry) {
+            this.entry = entry;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import com.github.sofiman.smartdownloader.utils.StringUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lists the expected hash of every fixed-size piece of the target file. The manifest is a text file
+ * whose first line gives the algorithm and the piece size, followed by one hexadecimal hash per piece:
+ * <pre>
+ * SHA-256 1048576
+ * 9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08
+ * ...
+ * root 2c26b46b68ffc68ff99b453c1d30413413422d706483bfa0f98a5e886266e7ae
+ * </pre>
+ * The optional root line is the Merkle root of the piece hashes (each parent being the hash of its two
+ * children concatenated, an odd node being moved up as is), it ensures the list itself is intact.
+ * Empty lines and lines starting with # are ignored.
+ */
+public class PieceManifest {
+
+    private final String algorithm;
+    private final long pieceSize;
+    private final List<byte[]> hashes;
+    private byte[] root;
+
+    public PieceManifest(String algorithm, long pieceSize) {
+        this.algorithm = algorithm;
+        this.pieceSize = pieceSize;
+        this.hashes = new ArrayList<>();
+    }
+
+    public static PieceManifest load(File file) throws IOException {
+        PieceManifest manifest = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] parts = line.split("\\s+");
+                if (manifest == null) {
+                    if (parts.length != 2) throw new IOException("Invalid piece manifest header: " + line);
+                    manifest = new PieceManifest(parts[0], Long.parseLong(parts[1]));
+                } else if (parts.length == 2 && parts[0].equalsIgnoreCase("root")) {
+                    manifest.root = StringUtils.fromHex(parts[1]);
+                } else {
+                    manifest.hashes.add(StringUtils.fromHex(parts[0]));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid piece manifest: " + e.getMessage(), e);
+        }
+        if (manifest == null) throw new IOException("Empty piece manifest");
+        return manifest;
+    }
+
+    /**
+     * Checks the manifest describes a file of the given length and matches its Merkle root if any.
+     */
+    public void validate(long length) throws IOException, NoSuchAlgorithmException {
+        if (pieceSize <= 0) throw new IOException("Invalid piece size: " + pieceSize);
+        long count = (length + pieceSize - 1) / pieceSize;
+        if (count != hashes.size()) {
+            throw new IOException("The piece manifest lists " + hashes.size() + " pieces, " + count + " expected");
+        }
+        if (root != null && !Arrays.equals(root, computeRoot())) {
+            throw new IOException("The piece hashes do not match the Merkle root of the manifest");
+        }
+    }
+
+    public byte[] computeRoot() throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance(algorithm);
+        List<byte[]> level = hashes;
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 == level.size()) {
+                    parents.add(level.get(i));
+                } else {
+                    md.update(level.get(i));
+                    md.update(level.get(i + 1));
+                    parents.add(md.digest());
+                }
+            }
+            level = parents;
+        }
+        return level.isEmpty() ? md.digest() : level.get(0);
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public long getPieceSize() {
+        return pieceSize;
+    }
+
+    public int getPieceCount() {
+        return hashes.size();
+    }
+
+    public byte[] getHash(int piece) {
+        return hashes.get(piece);
+    }
+
+    @Override
+    public String toString() {
+        return hashes.size() + " pieces of " + StringUtils.humanReadableByteCount(pieceSize, false) + " (" + algorithm + ")";
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Checks every piece of the output against its manifest hash as soon as all of its bytes were written.
+ * A corrupt piece is planned to be fetched again by any entry, and checked again once it is rewritten.
+ */
+public class PieceVerifier implements Runnable {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long POLL_INTERVAL = 20;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final byte PENDING = 0, REFETCHING = 1, VERIFIED = 2, FAILED = 3;
+
+    private final PieceManifest manifest;
+    private final FileChannel channel;
+    private final RangeScheduler scheduler;
+    private final long length;
+    private final byte[] states;
+    private final int[] attempts;
+    private final Segment[] refetches;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private volatile int verified, failed, cursor;
+    private volatile boolean cancelled;
+    private volatile IOException error;
+
+    public PieceVerifier(PieceManifest manifest, FileChannel channel, RangeScheduler scheduler) {
+        this.manifest = manifest;
+        this.channel = channel;
+        this.scheduler = scheduler;
+        this.length = scheduler.getLength();
+        this.states = new byte[manifest.getPieceCount()];
+        this.attempts = new int[manifest.getPieceCount()];
+        this.refetches = new Segment[manifest.getPieceCount()];
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            MessageDigest md = MessageDigest.getInstance(manifest.getAlgorithm());
+            while (!isSettled()) {
+                List<long[]> written = scheduler.getWritten();
+                for (int i = 0; i < states.length && !cancelled; i++) {
+                    if (states[i] == REFETCHING && refetches[i].isComplete()) {
+                        states[i] = PENDING;
+                    }
+                    if (states[i] != PENDING) continue;
+                    long start = i * manifest.getPieceSize();
+                    long end = Math.min(start + manifest.getPieceSize(), length);
+                    if (refetches[i] == null && !isWritten(written, start, end)) continue;
+                    verify(i, start, end, md, buffer);
+                }
+                int c = cursor;
+                while (c < states.length && states[c] == VERIFIED) c++;
+                cursor = c;
+                lock.lock();
+                try {
+                    // Cancelling wakes the verifier up before the interval ends
+                    if (!isSettled()) changed.await(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+            cancel();
+        } catch (NoSuchAlgorithmException e) {
+            error = new IOException(e);
+            cancel();
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private void verify(int piece, long start, long end, MessageDigest md, ByteBuffer buffer) throws IOException {
+        long position = start;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int len = channel.read(buffer, position);
+            if (len <= 0) throw new IOException("Unexpected end of the output file at " + position);
+            buffer.flip();
+            md.update(buffer);
+            position += len;
+        }
+        if (Arrays.equals(md.digest(), manifest.getHash(piece))) {
+            states[piece] = VERIFIED;
+            verified++;
+        } else if (++attempts[piece] >= MAX_ATTEMPTS) {
+            states[piece] = FAILED;
+            failed++;
+            System.err.println("\nPiece " + piece + " failed verification " + MAX_ATTEMPTS + " times, giving up");
+        } else {
+            states[piece] = REFETCHING;
+            refetches[piece] = scheduler.refetch(start, end - 1);
+            System.err.println("\nPiece " + piece + " failed verification, fetching it again");
+        }
+    }
+
+    private static boolean isWritten(List<long[]> written, long start, long end) {
+        int idx = Collections.binarySearch(written, new long[]{start, start}, Comparator.comparingLong(interval -> interval[0]));
+        if (idx < 0) idx = -idx - 2;
+        return idx >= 0 && written.get(idx)[0] <= start && written.get(idx)[1] >= end;
+    }
+
+    /**
+     * Returns true once every piece was either verified or given up.
+     */
+    public boolean isSettled() {
+        return cancelled || verified + failed == states.length;
+    }
+
+    /**
+     * Returns the offset of the first byte which was not verified yet.
+     */
+    public long getFrontier() {
+        return Math.min(length, cursor * manifest.getPieceSize());
+    }
+
+    public void cancel() {
+        cancelled = true;
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public IOException getError() {
+        return error;
+    }
+
+    public int getVerified() {
+        return verified;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+}
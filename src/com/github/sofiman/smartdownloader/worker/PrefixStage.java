@@ -0,0 +1,130 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Processes the output file in order while it is being downloaded. Ranges arrive in any order, so the
+ * stage follows the contiguous prefix written from offset 0 and reads it back from the file (usually
+ * still in the page cache) as soon as it grows.
+ */
+public abstract class PrefixStage implements Runnable {
+
+    private static final long POLL_INTERVAL = 10;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final FileChannel channel;
+    private final LongSupplier frontier;
+    private final long length;
+    private final CountDownLatch done;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition grown = lock.newCondition();
+    private volatile boolean cancelled;
+    private volatile IOException error;
+    private volatile long position;
+
+    /**
+     * @param frontier gives the offset of the first byte which can not be read yet
+     * @param length   the length of the file
+     */
+    protected PrefixStage(FileChannel channel, LongSupplier frontier, long length) {
+        this.channel = channel;
+        this.frontier = frontier;
+        this.length = length;
+        this.done = new CountDownLatch(1);
+    }
+
+    /**
+     * Called with the next bytes of the file, in order.
+     */
+    protected abstract void consume(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Called once the whole file was consumed.
+     */
+    protected abstract void finish() throws IOException;
+
+    /**
+     * Called once the stage is over, whether it finished, failed or was cancelled.
+     */
+    protected void release() throws IOException {
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            while (!cancelled) {
+                long frontier = this.frontier.getAsLong();
+                while (position < frontier && !cancelled) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), frontier - position));
+                    int len = channel.read(buffer, position);
+                    if (len <= 0) throw new IOException("Unexpected end of the output file at " + position);
+                    buffer.flip();
+                    consume(buffer);
+                    position += len;
+                }
+                if (position >= length) {
+                    finish();
+                    break;
+                }
+                lock.lock();
+                try {
+                    grown.await(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException ignored) {
+        } finally {
+            try {
+                release();
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+            done.countDown();
+        }
+    }
+
+    /**
+     * Wakes the stage up, to be called when the prefix may have grown.
+     */
+    public void signal() {
+        lock.lock();
+        try {
+            grown.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+        signal();
+    }
+
+    /**
+     * Waits for the stage to consume the whole file.
+     */
+    public void await() throws IOException, InterruptedException {
+        done.await();
+        if (error != null) throw error;
+        if (cancelled) throw new IOException("Stage cancelled before the end of the file");
+    }
+
+    /**
+     * Returns the number of bytes consumed so far.
+     */
+    public long getPosition() {
+        return position;
+    }
+}
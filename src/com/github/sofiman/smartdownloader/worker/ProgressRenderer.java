@@ -0,0 +1,125 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import com.github.sofiman.smartdownloader.utils.StringUtils;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Draws the progress line of the entries at a fixed rate until they all finished. Between two frames the
+ * renderer sleeps on the completion of the entries, so it wakes up right away when the last one finished
+ * instead of polling. The line is built in the same buffers every time and only printed if it changed.
+ */
+public class ProgressRenderer {
+
+    public static final int DEFAULT_RATE = 5;
+    public static final int MAX_RATE = 60;
+    private static final int BAR_LENGTH = 20;
+
+    private final List<Map.Entry<String, DownloadEntry>> entries;
+    private final long interval;
+    private final boolean bars;
+    private final Writer out;
+    private StringBuilder line = new StringBuilder(256), previous = new StringBuilder(256);
+    private char[] chars = new char[256];
+
+    /**
+     * @param rate the number of frames per second
+     * @param bars false if the length of the download is unknown, the received bytes are shown instead of a bar
+     */
+    public ProgressRenderer(Collection<Map.Entry<String, DownloadEntry>> entries, int rate, boolean bars) {
+        this.entries = new ArrayList<>(entries);
+        this.interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, Math.min(MAX_RATE, rate));
+        this.bars = bars;
+        this.out = new OutputStreamWriter(System.out, Charset.defaultCharset());
+    }
+
+    /**
+     * Draws the progress until every entry finished, the last frame shows the final state.
+     */
+    public void render() throws InterruptedException {
+        long next = System.nanoTime();
+        int index = 0;
+        while (true) {
+            // Waits on the entries in turn, the frame is due at the same time whichever one is waited on
+            while (index < entries.size()) {
+                long wait = next - System.nanoTime();
+                if (!entries.get(index).getValue().getTracker().awaitFinish(Math.max(0, wait), TimeUnit.NANOSECONDS)) break;
+                index++;
+            }
+            draw();
+            if (index == entries.size()) break;
+            next = Math.max(next + interval, System.nanoTime());
+        }
+    }
+
+    private void draw() {
+        StringBuilder b = line;
+        b.setLength(0);
+        b.append("\rDownloading: ");
+        float total = 0;
+        long eta = 0;
+        for (Map.Entry<String, DownloadEntry> entry : entries) {
+            DownloadEntry dwe = entry.getValue();
+            DownloadTracker tracker = dwe.getTracker();
+            b.append(entry.getKey());
+            if (bars) {
+                float progress = tracker.getProgress();
+                b.append(" [");
+                StringUtils.appendProgress(b, '=', ' ', '>', progress, BAR_LENGTH).append("] ");
+                StringUtils.appendDecimal(b, progress * 100f).append("% (");
+                total += progress;
+            } else {
+                StringUtils.appendByteCount(b.append(' '), tracker.getDownloaded(), true).append(" (");
+            }
+            StringUtils.appendByteCount(b, tracker.getSpeed(), true).append("/s");
+            if (dwe.isThrottled()) b.append('*');
+            RateLimiter limiter = dwe.getLimiter();
+            if (limiter != null && limiter.getParent() != null && !tracker.isFinished()) {
+                StringUtils.appendByteCount(b.append(" of "), limiter.getBytesPerSec(), true).append("/s");
+            }
+            if (tracker.getConnections() > 1) b.append(", ").append(tracker.getConnections()).append(" connections");
+            b.append(") ");
+            // The download ends with the slowest entry
+            long left = tracker.getEta();
+            eta = eta < 0 || left < 0 ? -1 : Math.max(eta, left);
+        }
+        if (bars && entries.size() > 1) {
+            StringUtils.appendDecimal(b.append("total of "), total * 100f / entries.size()).append("% ");
+        }
+        if (bars && eta > 0) {
+            StringUtils.appendDuration(b.append("ETA "), eta).append(' ');
+        }
+        // A shorter line must cover the end of the previous one
+        while (b.length() < previous.length()) b.append(' ');
+        if (b.length() == previous.length() && equal(b, previous)) return;
+        print(b);
+        line = previous;
+        previous = b;
+    }
+
+    private static boolean equal(CharSequence a, CharSequence b) {
+        for (int i = 0; i < a.length(); i++) {
+            if (a.charAt(i) != b.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private void print(StringBuilder b) {
+        int length = b.length();
+        if (chars.length < length) chars = new char[Math.max(length, chars.length * 2)];
+        b.getChars(0, length, chars, 0);
+        try {
+            out.write(chars, 0, length);
+            out.flush();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Hands out the segments of the target file to the entries. Each entry starts with the segment computed
+ * from its repartition, once done it picks up abandoned segments and then takes the back half of
+ * the largest segment still being fetched, so fast entries keep working until the whole file is done.
+ * Only the bytes which were not requested yet are taken, see {@link #bound(Segment)}.
+ */
+public class RangeScheduler {
+
+    public static final long DEFAULT_MIN_SPLIT = 512 * 1024;
+
+    private final long length;
+    private final long minSplit;
+    private final List<Segment> segments;
+    private final Map<DownloadEntry, Deque<Segment>> pending;
+    private final Deque<Segment> orphans;
+    // Waiting entries park on a lock rather than on the monitor, so virtual threads do not pin their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition work = lock.newCondition();
+    private volatile BooleanSupplier settled = () -> true;
+    private volatile boolean held, cancelled;
+
+    public RangeScheduler(long length) {
+        this(length, DEFAULT_MIN_SPLIT);
+    }
+
+    public RangeScheduler(long length, long minSplit) {
+        this.length = length;
+        this.minSplit = minSplit;
+        this.segments = new ArrayList<>();
+        this.pending = new HashMap<>();
+        this.orphans = new ArrayDeque<>();
+    }
+
+    /**
+     * Plans the given bytes (inclusive) to be fetched by the entry.
+     */
+    public synchronized Segment assign(DownloadEntry entry, long start, long end) {
+        Segment segment = new Segment(start, Math.min(end, length - 1));
+        segment.setOwner(entry);
+        segments.add(segment);
+        pending.computeIfAbsent(entry, e -> new ArrayDeque<>()).add(segment);
+        entry.getTracker().assign(segment.remaining());
+        signal();
+        return segment;
+    }
+
+    /**
+     * Restores a segment from a previous download, its missing bytes are left to any entry.
+     */
+    public synchronized void restore(long start, long end, long committed) {
+        Segment segment = new Segment(start, Math.min(end, length - 1), committed);
+        segments.add(segment);
+        if (!segment.isComplete()) {
+            orphans.add(segment);
+            signal();
+        }
+    }
+
+    /**
+     * Only hands out the segments assigned to each entry until {@link #resume()} is called, so that the
+     * rest of the file can be planned once the entries were measured.
+     */
+    public void hold() {
+        held = true;
+    }
+
+    public void resume() {
+        held = false;
+        signal();
+    }
+
+    /**
+     * Keeps the entries without work waiting instead of stopping until the condition is met, the bytes
+     * being checked may have to be fetched again.
+     */
+    public void waitFor(BooleanSupplier settled) {
+        this.settled = settled;
+    }
+
+    /**
+     * Returns true if there is nothing left to share and nothing will be, an entry without work can stop.
+     */
+    public boolean isDrained() {
+        return cancelled || !held && settled.getAsBoolean();
+    }
+
+    /**
+     * Waits until segments may be available, or the timeout (in milliseconds) elapsed.
+     */
+    public void awaitWork(long timeout) throws InterruptedException {
+        lock.lock();
+        try {
+            if (!isDrained()) work.await(timeout, TimeUnit.MILLISECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            work.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the start, end and committed offset of every segment, read at once so no stolen
+     * segment can be missed.
+     */
+    public synchronized List<long[]> snapshot() {
+        List<long[]> snapshot = new ArrayList<>(segments.size());
+        for (Segment segment : segments) {
+            snapshot.add(new long[]{segment.getStart(), segment.getEnd(), segment.getCommitted()});
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the next segment to be fetched by the entry, or null if there is nothing to share for now.
+     */
+    public synchronized Segment next(DownloadEntry entry) {
+        if (cancelled) return null;
+        Deque<Segment> queue = pending.get(entry);
+        if (queue != null && !queue.isEmpty()) {
+            return queue.poll();
+        }
+        if (held) return null;
+        Segment segment = orphans.poll();
+        if (segment != null) {
+            segment.setOwner(entry);
+            entry.getTracker().assign(segment.remaining());
+            return segment;
+        }
+        Segment largest = null;
+        long max = 0, remaining;
+        for (Segment s : segments) {
+            remaining = s.unrequested();
+            if (s.getOwner() != null && remaining > max) {
+                largest = s;
+                max = remaining;
+            }
+        }
+        if (largest == null) return null;
+        segment = largest.split(minSplit);
+        if (segment == null) return null;
+        largest.getOwner().getTracker().assign(-segment.remaining());
+        segment.setOwner(entry);
+        segments.add(segment);
+        entry.getTracker().assign(segment.remaining());
+        return segment;
+    }
+
+    /**
+     * Shortens the segment to the next request of its owner: half of what remains, at least twice the
+     * minimum split, so another entry can still take the back half without the server sending it twice.
+     * While held, nobody takes anything and the whole segment is requested at once.
+     */
+    public synchronized void bound(Segment segment) {
+        if (held) return;
+        limit(segment, Math.max(minSplit * 2, segment.remaining() / 2));
+    }
+
+    /**
+     * Gives up a segment its owner could not complete so that another entry picks it up.
+     */
+    public synchronized void release(Segment segment) {
+        DownloadEntry owner = segment.getOwner();
+        segment.rewind();
+        if (owner != null) {
+            owner.getTracker().assign(-segment.remaining());
+        }
+        segment.setOwner(null);
+        if (!segment.isComplete()) {
+            orphans.add(segment);
+            signal();
+        }
+    }
+
+    /**
+     * Shortens the segment to the given number of bytes, the rest stays planned for its owner and is
+     * handed out to it next.
+     */
+    public synchronized void limit(Segment segment, long size) {
+        Segment rest = segment.limit(size);
+        if (rest == null) return;
+        DownloadEntry owner = segment.getOwner();
+        segments.add(rest);
+        if (owner != null) {
+            rest.setOwner(owner);
+            pending.computeIfAbsent(owner, e -> new ArrayDeque<>()).addFirst(rest);
+        } else {
+            orphans.addFirst(rest);
+        }
+        signal();
+    }
+
+    /**
+     * Stops the segment at what its owner already received, the rest is left to any entry.
+     */
+    public synchronized void truncate(Segment segment) {
+        Segment rest = segment.cut();
+        if (rest == null) return;
+        DownloadEntry owner = segment.getOwner();
+        if (owner != null) {
+            owner.getTracker().assign(-rest.remaining());
+        }
+        segments.add(rest);
+        orphans.add(rest);
+        signal();
+    }
+
+    /**
+     * Stops handing out segments and ends every segment at the bytes already reserved, so the connections
+     * stop after their current read. The rest is kept as missing bytes, the download can be resumed.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        for (Segment segment : new ArrayList<>(segments)) {
+            Segment rest = segment.cut();
+            if (rest == null) continue;
+            DownloadEntry owner = segment.getOwner();
+            if (owner != null) {
+                owner.getTracker().assign(-rest.remaining());
+            }
+            segments.add(rest);
+        }
+        pending.clear();
+        orphans.clear();
+        signal();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Plans the given bytes (inclusive) to be fetched again by any entry, even if they were already written.
+     */
+    public synchronized Segment refetch(long start, long end) {
+        Segment segment = new Segment(start, Math.min(end, length - 1));
+        segments.add(segment);
+        orphans.add(segment);
+        signal();
+        return segment;
+    }
+
+    /**
+     * Returns the sorted and merged intervals (start inclusive, end exclusive) already written.
+     */
+    public synchronized List<long[]> getWritten() {
+        List<long[]> written = new ArrayList<>();
+        for (Segment segment : segments) {
+            long end = Math.min(segment.getCommitted(), segment.getEnd() + 1);
+            if (end > segment.getStart()) {
+                written.add(new long[]{segment.getStart(), end});
+            }
+        }
+        written.sort(Comparator.comparingLong(interval -> interval[0]));
+        List<long[]> merged = new ArrayList<>(written.size());
+        for (long[] interval : written) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && interval[0] <= last[1]) {
+                last[1] = Math.max(last[1], interval[1]);
+            } else {
+                merged.add(interval);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Returns the offset of the first byte not written yet, every byte before it is on the output.
+     */
+    public synchronized long getFrontier() {
+        List<Segment> sorted = new ArrayList<>(segments);
+        sorted.sort(Comparator.comparingLong(Segment::getStart));
+        long position = 0;
+        for (Segment segment : sorted) {
+            if (segment.getStart() > position) return position;
+            if (!segment.isComplete()) return segment.getCommitted();
+            position = Math.max(position, segment.getEnd() + 1);
+        }
+        return Math.min(position, length);
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public synchronized boolean isComplete() {
+        for (Segment segment : segments) {
+            if (!segment.isComplete()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes which have not been written yet.
+     */
+    public synchronized long getMissing() {
+        long missing = 0;
+        for (Segment segment : segments) {
+            missing += Math.max(0, segment.getEnd() - segment.getCommitted() + 1);
+        }
+        return missing;
+    }
+
+    public synchronized List<Segment> getSegments() {
+        return new ArrayList<>(segments);
+    }
+}
@@ -0,0 +1,195 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits a rate in bytes per second with a token bucket: tokens are added continuously at the given rate,
+ * up to the burst size, and every read takes as many tokens as the bytes it may read. Unlike an average over
+ * the whole download, a stall does not let the next reads go at full speed until the average caught up.
+ * <p>
+ * A limiter can be shared by several connections, their combined speed is then limited. Limiters can also
+ * be nested: a limiter with a parent only hands out the tokens which its parent hands out as well.
+ */
+public class RateLimiter {
+
+    /**
+     * The default burst is the refill of 10 ms, so the limit holds at a 100 ms scale.
+     */
+    private static final long BURST_DIVISOR = 100;
+    private static final long MIN_BURST = 1024;
+
+    private final RateLimiter parent;
+    private final boolean fixedBurst;
+    private volatile long bytesPerSec;
+    private long burst;
+    private double tokens;
+    private long last;
+
+    public RateLimiter(long bytesPerSec) {
+        this(bytesPerSec, defaultBurst(bytesPerSec), null, false);
+    }
+
+    /**
+     * @param burst the maximum number of tokens, which can be taken at once after an idle period
+     */
+    public RateLimiter(long bytesPerSec, long burst) {
+        this(bytesPerSec, burst, null, true);
+    }
+
+    /**
+     * @param parent the limiter which must also grant every token of this one
+     */
+    public RateLimiter(long bytesPerSec, RateLimiter parent) {
+        this(bytesPerSec, defaultBurst(bytesPerSec), parent, false);
+    }
+
+    private RateLimiter(long bytesPerSec, long burst, RateLimiter parent, boolean fixedBurst) {
+        if (bytesPerSec <= 0) {
+            throw new IllegalArgumentException("bytesPerSec should be positive");
+        }
+        if (burst <= 0) {
+            throw new IllegalArgumentException("burst should be positive");
+        }
+        this.bytesPerSec = bytesPerSec;
+        this.burst = burst;
+        this.parent = parent;
+        this.fixedBurst = fixedBurst;
+        this.tokens = burst;
+        this.last = System.nanoTime();
+    }
+
+    private static long defaultBurst(long bytesPerSec) {
+        return Math.max(MIN_BURST, bytesPerSec / BURST_DIVISOR);
+    }
+
+    /**
+     * Takes up to the given number of tokens without waiting.
+     *
+     * @return the number of tokens taken, 0 if the bucket is empty
+     */
+    public long tryAcquire(long max) {
+        long taken;
+        synchronized (this) {
+            if (bytesPerSec == Long.MAX_VALUE) {
+                taken = max;
+            } else {
+                refill();
+                taken = Math.max(0, (long) Math.min(max, tokens));
+                tokens -= taken;
+            }
+        }
+        return taken > 0 && parent != null ? grant(taken, parent.tryAcquire(taken)) : taken;
+    }
+
+    /**
+     * Waits until the bucket holds the given number of tokens (or the burst size if lower), then takes them.
+     *
+     * @return the number of tokens taken
+     */
+    public long acquire(long max) throws InterruptedException {
+        long taken = max;
+        while (bytesPerSec != Long.MAX_VALUE) {
+            long wait;
+            synchronized (this) {
+                long wanted = Math.min(max, burst);
+                refill();
+                if (tokens >= wanted) {
+                    tokens -= wanted;
+                    taken = wanted;
+                    break;
+                }
+                wait = (long) Math.ceil((wanted - tokens) * 1e9 / bytesPerSec);
+            }
+            // The monitor is released while sleeping, so other connections can take the next tokens
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return parent != null ? grant(taken, parent.acquire(taken)) : taken;
+    }
+
+    /**
+     * Gives back the tokens which were taken here but not granted by the parent.
+     */
+    private long grant(long taken, long granted) {
+        if (granted < taken) refundOwn(taken - granted);
+        return granted;
+    }
+
+    /**
+     * Gives back tokens which were taken but not used, because a read returned fewer bytes than allowed.
+     */
+    public void refund(long unused) {
+        if (unused <= 0) return;
+        refundOwn(unused);
+        if (parent != null) parent.refund(unused);
+    }
+
+    private synchronized void refundOwn(long unused) {
+        if (bytesPerSec != Long.MAX_VALUE) {
+            tokens = Math.min(burst, tokens + unused);
+        }
+    }
+
+    /**
+     * Returns the time in nanoseconds until the bucket holds the given number of tokens (or the burst size
+     * if lower), 0 if it already does.
+     */
+    public long getWaitTime(long wanted) {
+        long wait = 0;
+        synchronized (this) {
+            if (bytesPerSec != Long.MAX_VALUE) {
+                refill();
+                double missing = Math.min(wanted, burst) - tokens;
+                wait = missing <= 0 ? 0 : (long) Math.ceil(missing * 1e9 / bytesPerSec);
+            }
+        }
+        return parent != null ? Math.max(wait, parent.getWaitTime(wanted)) : wait;
+    }
+
+    /**
+     * Changes the rate, the tokens added until now are kept.
+     */
+    public synchronized void setBytesPerSec(long bytesPerSec) {
+        if (bytesPerSec <= 0) {
+            throw new IllegalArgumentException("bytesPerSec should be positive");
+        }
+        refill();
+        this.bytesPerSec = bytesPerSec;
+        if (!fixedBurst) {
+            burst = defaultBurst(bytesPerSec);
+            tokens = Math.min(tokens, burst);
+        }
+    }
+
+    public long getBytesPerSec() {
+        return bytesPerSec;
+    }
+
+    public synchronized long getBurst() {
+        return burst;
+    }
+
+    public RateLimiter getParent() {
+        return parent;
+    }
+
+    /**
+     * Returns true if neither this limiter nor its parents limit anything.
+     */
+    public boolean isUnlimited() {
+        return bytesPerSec == Long.MAX_VALUE && (parent == null || parent.isUnlimited());
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (bytesPerSec != Long.MAX_VALUE) {
+            tokens = Math.min(burst, tokens + (now - last) * (bytesPerSec / 1e9));
+        }
+        last = now;
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimiter{" + "bytesPerSec=" + bytesPerSec + ", burst=" + burst
+                + (parent != null ? ", parent=" + parent : "") + '}';
+    }
+}
@@ -1,13 +1,14 @@
 package com.github.sofiman.smartdownloader.worker;
 
+import com.github.sofiman.smartdownloader.http2.Http2Connection;
+import com.github.sofiman.smartdownloader.http2.Http2Stream;
 import com.github.sofiman.smartdownloader.utils.Streams;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.DeflaterInputStream;
 import java.util.zip.GZIPInputStream;
@@ -20,9 +21,26 @@ public class Request {
     private final Map<String, String> headers;
     private NetworkInterface ni;
     private File out;
+    private boolean append;
+    private FileChannel channel;
+    private Segment segment;
     private int bufferSize = 2048;
     private volatile DownloadTracker tracker;
     private long throttle = Long.MAX_VALUE;
+    private RateLimiter limiter;
+    private ConnectionPool pool = ConnectionPool.shared();
+    private Http2Client http2;
+    private boolean decode = true;
+    private EntryMetrics metrics;
+    private long sentTime;
+    private Socket socket;
+    private Http2Stream stream;
+    private InputStream response;
+    private ConnectionPool.Route route;
+    private final HttpResponseParser parser = new HttpResponseParser();
+    private Map<String, String> collected;
+    private byte[] buffer;
+    private boolean complete;
 
     public Request(String url, Map<String, String> headers) {
         this.url = url;
@@ -58,6 +76,28 @@ public class Request {
         return this;
     }
 
+    /**
+     * Writes the response body at the end of the file, which keeps what an earlier request wrote. The
+     * response has to be the requested range, a full body would be appended after the bytes already there.
+     */
+    public Request append(File out) {
+        this.out = out;
+        this.append = true;
+
+        return this;
+    }
+
+    /**
+     * Writes the response body into the segment, the request stops as soon as the segment is complete
+     * even if the scheduler shortened it in the meantime.
+     */
+    public Request out(FileChannel channel, Segment segment) {
+        this.channel = channel;
+        this.segment = segment;
+
+        return this;
+    }
+
     public Request bufferSize(int bufferSize) {
         this.bufferSize = bufferSize;
 
@@ -76,142 +116,362 @@ public class Request {
         return this;
     }
 
+    /**
+     * Limits the speed of the body with a limiter shared with other requests, instead of a limit of its own.
+     */
+    public Request limiter(RateLimiter limiter) {
+        this.limiter = limiter;
+
+        return this;
+    }
+
+    public Request pool(ConnectionPool pool) {
+        this.pool = pool;
+
+        return this;
+    }
+
+    /**
+     * Sends the request as a stream of the HTTP/2 connection of its route instead of on a socket of its own.
+     */
+    public Request http2(Http2Client http2) {
+        this.http2 = http2;
+
+        return this;
+    }
+
+    /**
+     * Writes a compressed body as it is received when false, instead of inflating it on the fly.
+     */
+    public Request decode(boolean decode) {
+        this.decode = decode;
+
+        return this;
+    }
+
+    /**
+     * Records the timings of the request into the metrics of its entry.
+     */
+    public Request metrics(EntryMetrics metrics) {
+        this.metrics = metrics;
+
+        return this;
+    }
+
     public void send() throws IOException {
         URL url = new URL(this.url);
+        if (metrics != null) metrics.onRequest();
         this.headers.put("Connection", "keep-alive");
         this.headers.put("Accept", "*/*");
-        this.headers.put("Accept-Encoding", "gzip, deflate");
-
-        InetAddress addr = InetAddress.getByName(url.getHost());
-        Socket socket = new Socket();
-        String path = url.getPath();
-        if (ni != null) {
-            Enumeration<InetAddress> nifAddresses = ni.getInetAddresses();
-            socket.bind(new InetSocketAddress(nifAddresses.nextElement(), 0));
+        if (!this.headers.containsKey("Accept-Encoding")) {
+            // A range of a compressed body can not be inflated on its own
+            this.headers.put("Accept-Encoding", this.headers.containsKey("Range") ? "identity" : "gzip, deflate");
         }
-        socket.connect(new InetSocketAddress(addr, 80));
+        if (out == null && channel == null) throw new NullPointerException("Output file cannot be null");
 
-        BufferedWriter wr = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
-        wr.write("GET " + path + " HTTP/1.1\n");
-        wr.write("Host: " + url.getHost() + "\n");
-        for (Map.Entry<String, String> header : headers.entrySet()) {
-            wr.write(header.getKey() + ":" + header.getValue() + "\n");
+        if (!exchange(url, "GET")) {
+            abort();
+            throw new IOException("Connection closed before receiving the response headers");
+        }
+        try {
+            if (segment != null) {
+                // A server ignoring the range would write the start of the file at the offset of the segment
+                parser.expectRange(segment.getCommitted());
+            } else if (parser.getStatusCode() / 100 != 2) {
+                throw new IOException("Unexpected response: " + parser.getStatusCode());
+            } else if (append && parser.getStatusCode() != 206) {
+                throw new IOException("The server ignored the range, the file can not be resumed");
+            }
+        } catch (IOException e) {
+            abort();
+            throw e;
         }
-        wr.write("\n\r");
-        wr.flush();
 
         // Initialize the streams.
-        if (out == null) throw new NullPointerException("Output file cannot be null");
-        final FileOutputStream fileOutputStream = new FileOutputStream(out);
-        final byte[] buffer = new byte[bufferSize];
-
-        InputStream in = socket.getInputStream();
-        Map<String, String> inHeaders = parseHeaders(in, fileOutputStream, buffer);
-        long length = Long.parseLong(inHeaders.get("Content-Length"));
-        String encoding = inHeaders.get("Content-Encoding");
+        final OutputStream outputStream;
+        if (segment != null) {
+            outputStream = segment.writeTo(channel);
+        } else {
+            outputStream = new FileOutputStream(out, append);
+        }
+        final byte[] buffer = buffer();
+
+        // The body is read exactly, so that the socket can be used again by the next request
+        String transferEncoding = parser.getTransferEncoding();
+        if (transferEncoding != null && !"chunked".equals(transferEncoding)) {
+            System.err.println("\nTransfer Encoding not supported: " + transferEncoding);
+            abort();
+            outputStream.close();
+            return;
+        }
+        // The length of a chunked body is given by its chunks, a Content-Length is ignored
+        final ChunkedInputStream chunked = transferEncoding != null && stream == null ?
+                new ChunkedInputStream((PushbackInputStream) response) : null;
+        long length = chunked == null ? parser.getContentLength() : -1;
+        InputStream source = chunked != null ? chunked : response;
+        if (metrics != null) source = metrics.meter(source);
+        final Streams.LimitedInputStream body = new Streams.LimitedInputStream(source,
+                length >= 0 ? length : Long.MAX_VALUE);
+        // Over HTTP/2 the rest of the body is dropped by cancelling the stream, the connection stays open
+        final boolean keepAlive = stream == null && (length >= 0 || chunked != null) && parser.isKeepAlive();
+        InputStream in = body;
+        String encoding = decode ? parser.getContentEncoding() : null;
         if("gzip".equals(encoding)){
             in = new GZIPInputStream(in);
         } else if("deflate".equals(encoding)){
             in = new InflaterInputStream(in, new Inflater(true));
         } else if(encoding != null && !"identity".equals(encoding))  {
             System.err.println("\nContent Encoding not supported: " + encoding);
-            in.close();
-            fileOutputStream.close();
-            socket.close();
+            abort();
+            outputStream.close();
             return;
         }
-        final ThrottledInputStream inputStream = new ThrottledInputStream(in, throttle);
+        final ThrottledInputStream throttled = limiter != null ? new ThrottledInputStream(in, limiter) :
+                new ThrottledInputStream(in, throttle);
+        final InputStream inputStream = segment != null ? segment.bound(throttled) : throttled;
 
+        final Socket socket = this.socket;
+        final Http2Stream stream = this.stream;
         AtomicBoolean close = new AtomicBoolean(false);
+        Thread lock = new Thread(() -> {
+            close.set(true);
+            if (stream != null) {
+                stream.cancel();
+            } else {
+                ConnectionPool.close(socket);
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(lock);
+        boolean reusable = false;
         try {
-            Thread lock = new Thread(() -> {
-                try {
-                    close.set(true);
-                    inputStream.close();
-                    socket.close();
-                } catch (IOException ignored) {
-                }
-            });
-            Runtime.getRuntime().addShutdownHook(lock);
-            Streams.copy(inputStream, fileOutputStream, buffer, tracker.init(length, () -> {
-                try {
-                    inputStream.close();
-                    socket.close();
-                    Runtime.getRuntime().removeShutdownHook(lock);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }));
+            Streams.copy(inputStream, outputStream, buffer, tracker != null ? tracker : Streams.EMPTY_AGENT);
+            // Without a length or chunks, the body ends with the connection and can not be checked
+            complete = chunked != null ? chunked.isEnded() : length < 0 || body.getRemaining() == 0;
+            // A segment shortened in the meantime leaves bytes of the body on the socket
+            reusable = keepAlive && complete;
         } catch (Exception e) {
             if (!close.get()) {
                 e.printStackTrace();
             }
         } finally {
-            fileOutputStream.close();
+            outputStream.close();
+            if (metrics != null) metrics.onThrottleSleep(throttled.getTotalSleepNanos());
+            try {
+                Runtime.getRuntime().removeShutdownHook(lock);
+            } catch (IllegalStateException ignored) {
+            }
+            if (reusable) {
+                pool.release(route, socket);
+            } else {
+                abort();
+            }
         }
     }
 
+    /**
+     * Returns true if the whole body of the last response was received.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public int getStatusCode() {
+        return parser.getStatusCode();
+    }
+
+    /**
+     * Returns the length of the whole resource given by the Content-Range of the last response, -1 if it
+     * was not a partial response.
+     */
+    public long getRangeTotal() {
+        return parser.getStatusCode() == 206 ? parser.getRangeTotal() : -1;
+    }
+
+    /**
+     * Asks for the first byte of the resource, to find out if the server accepts ranges when it does not
+     * tell the length of the resource otherwise.
+     *
+     * @return the length given by the Content-Range of the response, -1 if the range was ignored
+     */
+    public long probeLength() throws IOException {
+        URL url = new URL(this.url);
+        this.headers.put("Connection", "keep-alive");
+        this.headers.put("Accept", "*/*");
+        this.headers.put("Accept-Encoding", "identity");
+        this.headers.put("Range", "bytes=0-0");
+
+        if (!exchange(url, "GET")) {
+            abort();
+            return -1;
+        }
+        long total = parser.getStatusCode() == 206 && parser.getContentEncoding() == null ?
+                parser.getRangeTotal() : -1;
+        // The single byte is read, so that the socket can be used again
+        if (stream == null && total >= 0 && parser.getTransferEncoding() == null && parser.getContentLength() == 1
+                && parser.isKeepAlive() && response.read() != -1) {
+            pool.release(route, socket);
+        } else {
+            abort();
+        }
+        return total;
+    }
+
     public Map<String, String> head() throws IOException {
         URL url = new URL(this.url);
         this.headers.put("Connection", "keep-alive");
         this.headers.put("Accept", "*/*");
 
-        InetAddress addr = InetAddress.getByName(url.getHost());
-        Socket socket = new Socket();
-        String path = url.getPath();
-        if (ni != null) {
-            Enumeration<InetAddress> nifAddresses = ni.getInetAddresses();
-            socket.bind(new InetSocketAddress(nifAddresses.nextElement(), 0));
+        Map<String, String> inHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        collected = inHeaders;
+        boolean received = exchange(url, "HEAD");
+        if (stream == null && received && parser.isKeepAlive()) {
+            pool.release(route, socket);
+        } else {
+            abort();
         }
-        socket.connect(new InetSocketAddress(addr, 80));
+        return received ? inHeaders : null;
+    }
 
+    /**
+     * Closes the socket of the request, or only cancels its stream over HTTP/2.
+     */
+    private void abort() {
+        if (stream != null) {
+            stream.cancel();
+        } else if (socket != null) {
+            ConnectionPool.close(socket);
+        }
+    }
+
+    /**
+     * Sends the request on a pooled socket if there is one, or on a new one, and reads the response headers.
+     *
+     * @return false if the connection was closed before receiving the response headers
+     */
+    private boolean exchange(URL url, String method) throws IOException {
+        if (!"http".equalsIgnoreCase(url.getProtocol()) && !"https".equalsIgnoreCase(url.getProtocol())) {
+            throw new MalformedURLException("Unsupported protocol: " + url.getProtocol());
+        }
+        InetAddress address = InetAddress.getByName(url.getHost());
+        route = new ConnectionPool.Route(ni != null ? localAddress(ni, address) : null, url, address);
+        String host = url.getHost() + (url.getPort() == -1 ? "" : ":" + url.getPort());
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        if (http2 != null) {
+            return exchange2(url, host, path, method);
+        }
+        socket = pool.acquire(route);
+        if (socket != null) {
+            try {
+                if (exchange(host, path, method)) return true;
+            } catch (IOException ignored) {
+            }
+            // The server dropped the idle connection in the meantime
+            ConnectionPool.close(socket);
+        }
+        long start = System.nanoTime();
+        socket = pool.connect(route);
+        if (metrics != null) metrics.onConnect(System.nanoTime() - start);
+        return exchange(host, path, method);
+    }
+
+    private boolean exchange(String host, String path, String method) throws IOException {
+        sentTime = System.nanoTime();
         BufferedWriter wr = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
-        wr.write("GET " + path + " HTTP/1.1\n");
-        wr.write("Host: " + url.getHost() + "\n");
+        wr.write(method + " " + path + " HTTP/1.1\r\n");
+        wr.write("Host: " + host + "\r\n");
         for (Map.Entry<String, String> header : headers.entrySet()) {
-            wr.write(header.getKey() + ":" + header.getValue() + "\n");
+            wr.write(header.getKey() + ": " + header.getValue() + "\r\n");
         }
-        wr.write("\n\r");
+        wr.write("\r\n");
         wr.flush();
-        final InputStream inputStream = socket.getInputStream();
-        byte[] buffer = new byte[bufferSize];
-        Map<String, String> inHeaders = parseHeaders(inputStream, null, buffer);
-        inputStream.close();
-        socket.close();
-        return inHeaders;
-    }
-
-    private Map<String, String> parseHeaders(InputStream inputStream, OutputStream outputStream, byte[] buffer) throws IOException {
-        Map<String, String> inHeaders = new HashMap<>();
-        StringBuilder head = new StringBuilder();
-        String buf = "";
-        int len = 0;
-        while (true) {
-            len = inputStream.read(buffer);
-            if (len == -1) {
-                return null;
-            }
-            buf = new String(buffer, 0, len);
-            int idx = buf.indexOf("\r\n\r\n") + 4;
-            if (idx > -1) {
-                head.append(buf, 0, idx);
-                if(outputStream != null){
-                    outputStream.write(buffer, idx, bufferSize-(idx));
-                }
-                buf = null;
-                break;
+        PushbackInputStream in = new PushbackInputStream(socket.getInputStream(),
+                Math.max(bufferSize, ChunkedInputStream.FRAME_READ));
+        response = in;
+        return readHead(in, buffer());
+    }
+
+    /**
+     * Sends the request on a new stream of the HTTP/2 connection of the route and waits for the response headers.
+     */
+    private boolean exchange2(URL url, String host, String path, String method) throws IOException {
+        List<String[]> request = new ArrayList<>();
+        request.add(new String[]{":method", method});
+        request.add(new String[]{":scheme", url.getProtocol().toLowerCase()});
+        request.add(new String[]{":authority", host});
+        request.add(new String[]{":path", path});
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            // Connection specific headers are forbidden in HTTP/2
+            if (!header.getKey().equalsIgnoreCase("Connection")) {
+                request.add(new String[]{header.getKey().toLowerCase(Locale.ROOT), header.getValue()});
             }
-            head.append(buf);
         }
+        sentTime = System.nanoTime();
+        Http2Connection connection = http2.connection(route);
+        try {
+            stream = connection.request(request);
+        } catch (IOException e) {
+            // The server closed the connection since the previous request
+            if (connection.isUsable()) throw e;
+            stream = http2.connection(route).request(request);
+        }
+        parser.reset();
+        List<String[]> received = stream.awaitHeaders();
+        if (metrics != null) metrics.onFirstByte(System.nanoTime() - sentTime);
+        for (String[] header : received) {
+            parser.header(header[0], header[1]);
+            if (collected != null && !header[0].startsWith(":")) collected.put(header[0], header[1]);
+        }
+        response = stream.getInputStream();
+        return true;
+    }
+
+    /**
+     * Picks an address of the network interface in the same family as the target, a dual-stack
+     * interface usually lists its IPv6 addresses first which can not reach an IPv4 host.
+     */
+    static InetAddress localAddress(NetworkInterface ni, InetAddress target) {
+        Enumeration<InetAddress> nifAddresses = ni.getInetAddresses();
+        InetAddress first = null;
+        while (nifAddresses.hasMoreElements()) {
+            InetAddress address = nifAddresses.nextElement();
+            if (address.getClass() == target.getClass()) return address;
+            if (first == null) first = address;
+        }
+        return first;
+    }
 
-        String[] lines = head.toString().split("\n");
-        int idx;
-        for (String line : lines) {
-            idx = line.indexOf(":");
-            if (idx > -1) {
-                inHeaders.put(line.substring(0, idx), line.substring(idx + 2).trim());
+    /**
+     * Reads the response head, the bytes of the body received with it are pushed back into the stream.
+     *
+     * @return false if the stream ended before the end of the head
+     */
+    private boolean readHead(PushbackInputStream inputStream, byte[] buffer) throws IOException {
+        parser.reset();
+        if (collected != null) {
+            collected.clear();
+            parser.collect(collected);
+        }
+        int len;
+        boolean first = true;
+        while ((len = inputStream.read(buffer)) != -1) {
+            if (first && metrics != null) metrics.onFirstByte(System.nanoTime() - sentTime);
+            first = false;
+            int head = parser.parse(buffer, 0, len);
+            if (parser.isComplete()) {
+                inputStream.unread(buffer, head, len - head);
+                return true;
             }
         }
-        return inHeaders;
+        return false;
+    }
+
+    /**
+     * Returns the buffer of the request, used to read the head and then to copy the body.
+     */
+    private byte[] buffer() {
+        if (buffer == null) {
+            buffer = new byte[bufferSize];
+        }
+        return buffer;
     }
 }
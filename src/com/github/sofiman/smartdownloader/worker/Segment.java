@@ -0,0 +1,218 @@
+package com.github.sofiman.smartdownloader.worker;
+
+import com.github.sofiman.smartdownloader.utils.Range;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A part of the target file that is still being fetched. The owner writes it from the start towards
+ * the end while the scheduler may shorten its end at any time to hand the rest to another entry, only
+ * past the bytes the owner already requested so that the server does not send them twice.
+ */
+public class Segment {
+
+    private final long start;
+    private long end, position, requested;
+    private volatile long committed, completionTime;
+    private DownloadEntry owner;
+
+    public Segment(long start, long end) {
+        this(start, end, start);
+    }
+
+    /**
+     * Creates a segment whose bytes before the committed offset were already written.
+     */
+    public Segment(long start, long end, long committed) {
+        this.start = start;
+        this.end = end;
+        this.position = committed;
+        this.requested = committed;
+        this.committed = committed;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public synchronized long getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the offset of the first byte which has not been written yet.
+     */
+    public long getCommitted() {
+        return committed;
+    }
+
+    public synchronized long remaining() {
+        return Math.max(0, end - position + 1);
+    }
+
+    /**
+     * Returns the number of bytes which were not requested yet, the only ones which can be split off.
+     */
+    synchronized long unrequested() {
+        return Math.max(0, end - Math.max(position, requested) + 1);
+    }
+
+    public boolean isComplete() {
+        return committed > getEnd();
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the last byte was written, or 0 if it was not.
+     */
+    public long getCompletionTime() {
+        return completionTime;
+    }
+
+    public synchronized DownloadEntry getOwner() {
+        return owner;
+    }
+
+    synchronized void setOwner(DownloadEntry owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Returns the range which still has to be requested.
+     */
+    public synchronized Range toRange() {
+        return new Range(position, end);
+    }
+
+    /**
+     * Returns the range which still has to be requested and keeps it from being split, the request
+     * is about to be sent.
+     */
+    synchronized Range request() {
+        requested = end + 1;
+        return new Range(position, end);
+    }
+
+    /**
+     * Forgets the bytes which were reserved but never written, so the segment can be requested again.
+     */
+    synchronized void rewind() {
+        position = committed;
+        requested = committed;
+    }
+
+    /**
+     * Reserves up to len bytes for the owner, fewer if the end was moved in the meantime.
+     */
+    private synchronized int reserve(int len) {
+        int n = (int) Math.min(len, Math.max(0, end - position + 1));
+        position += n;
+        return n;
+    }
+
+    /**
+     * Cuts the back half of the bytes not requested yet into a new segment.
+     *
+     * @return the new segment or null if what remains is smaller than twice the given size
+     */
+    synchronized Segment split(long minSize) {
+        long from = Math.max(position, requested);
+        long remaining = end - from + 1;
+        if (remaining < minSize * 2) return null;
+        long mid = from + remaining / 2;
+        Segment segment = new Segment(mid, end);
+        end = mid - 1;
+        return segment;
+    }
+
+    /**
+     * Ends the segment after the given number of bytes not fetched yet and moves what follows into a new segment.
+     *
+     * @return the new segment or null if fewer bytes remain
+     */
+    synchronized Segment limit(long size) {
+        if (end - position + 1 <= size) return null;
+        Segment segment = new Segment(position + size, end);
+        end = position + size - 1;
+        return segment;
+    }
+
+    /**
+     * Ends the segment at the bytes already reserved and moves what follows into a new segment.
+     *
+     * @return the new segment or null if everything was reserved
+     */
+    synchronized Segment cut() {
+        if (position > end) return null;
+        Segment segment = new Segment(position, end);
+        end = position - 1;
+        return segment;
+    }
+
+    /**
+     * Writes the bytes of the buffer the segment still expects into the channel, the bytes past the end
+     * are left in the buffer.
+     *
+     * @return the number of bytes written
+     */
+    public int write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        int n = reserve(buffer.remaining());
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(slice.position() + n);
+        long offset = committed;
+        while (slice.hasRemaining()) {
+            offset += channel.write(slice, offset);
+        }
+        committed = offset;
+        buffer.position(slice.position());
+        if (completionTime == 0 && isComplete()) {
+            completionTime = System.nanoTime();
+        }
+        return n;
+    }
+
+    /**
+     * Returns a stream writing the segment into the channel, bytes past the end are dropped.
+     */
+    public OutputStream writeTo(FileChannel channel) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Segment.this.write(channel, ByteBuffer.wrap(b, off, len));
+            }
+        };
+    }
+
+    /**
+     * Returns a stream ending as soon as the segment does not expect any more byte.
+     */
+    public InputStream bound(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                return remaining() > 0 ? super.read() : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                long remaining = remaining();
+                if (remaining <= 0) return -1;
+                return super.read(b, off, (int) Math.min(len, remaining));
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return start + ":" + getEnd();
+    }
+}
@@ -6,28 +6,40 @@ import java.io.InputStream;
 public class ThrottledInputStream extends InputStream {
 
     private final InputStream inputStream;
-    private final long maxBytesPerSec;
+    private final RateLimiter limiter;
     private final long startTime = System.nanoTime();
 
     private long bytesRead = 0;
     private long totalSleepTime = 0;
 
-    private static final long SLEEP_DURATION_MS = 30;
-
     public ThrottledInputStream(InputStream inputStream) {
         this(inputStream, Long.MAX_VALUE);
     }
 
     public ThrottledInputStream(InputStream inputStream, long maxBytesPerSec) {
-        if (maxBytesPerSec < 0) {
-            throw new IllegalArgumentException("maxBytesPerSec shouldn't be negative");
-        }
+        this(inputStream, limiter(maxBytesPerSec));
+    }
+
+    /**
+     * Reads under the limit of the given limiter, which may be shared with other streams.
+     */
+    public ThrottledInputStream(InputStream inputStream, RateLimiter limiter) {
         if (inputStream == null) {
             throw new IllegalArgumentException("inputStream shouldn't be null");
         }
+        if (limiter == null) {
+            throw new IllegalArgumentException("limiter shouldn't be null");
+        }
 
         this.inputStream = inputStream;
-        this.maxBytesPerSec = maxBytesPerSec;
+        this.limiter = limiter;
+    }
+
+    private static RateLimiter limiter(long maxBytesPerSec) {
+        if (maxBytesPerSec < 0) {
+            throw new IllegalArgumentException("maxBytesPerSec shouldn't be negative");
+        }
+        return new RateLimiter(Math.max(1, maxBytesPerSec));
     }
 
     @Override
@@ -37,43 +49,53 @@ public class ThrottledInputStream extends InputStream {
 
     @Override
     public int read() throws IOException {
-        throttle();
+        throttle(1);
         int data = inputStream.read();
         if (data != -1) {
             bytesRead++;
+        } else {
+            limiter.refund(1);
         }
         return data;
     }
 
     @Override
     public int read(byte[] b) throws IOException {
-        throttle();
-        int readLen = inputStream.read(b);
-        if (readLen != -1) {
-            bytesRead += readLen;
-        }
-        return readLen;
+        return read(b, 0, b.length);
     }
 
+    /**
+     * Reads at most as many bytes as the limiter allows, the tokens of the bytes which were not received
+     * are given back.
+     */
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        throttle();
-        int readLen = inputStream.read(b, off, len);
+        if (len == 0) {
+            return 0;
+        }
+        int allowed = (int) throttle(len);
+        int readLen = inputStream.read(b, off, allowed);
+        if (readLen < allowed) {
+            limiter.refund(allowed - Math.max(readLen, 0));
+        }
         if (readLen != -1) {
             bytesRead += readLen;
         }
         return readLen;
     }
 
-    private void throttle() throws IOException {
-        while (getBytesPerSec() > maxBytesPerSec) {
-            try {
-                Thread.sleep(SLEEP_DURATION_MS);
-                totalSleepTime += SLEEP_DURATION_MS;
-            } catch (InterruptedException e) {
-                System.out.println("Thread interrupted" + e.getMessage());
-                throw new IOException("Thread interrupted", e);
-            }
+    private long throttle(int len) throws IOException {
+        if (limiter.isUnlimited()) {
+            return len;
+        }
+        long start = System.nanoTime();
+        try {
+            return limiter.acquire(len);
+        } catch (InterruptedException e) {
+            System.out.println("Thread interrupted" + e.getMessage());
+            throw new IOException("Thread interrupted", e);
+        } finally {
+            totalSleepTime += System.nanoTime() - start;
         }
     }
 
@@ -85,21 +107,31 @@ public class ThrottledInputStream extends InputStream {
      * Return the number of bytes read per second
      */
     public long getBytesPerSec() {
-        long elapsed = (System.nanoTime() - startTime) / 1000000000;
+        long elapsed = System.nanoTime() - startTime;
         if (elapsed == 0) {
             return bytesRead;
         } else {
-            return bytesRead / elapsed;
+            return (long) (bytesRead * 1e9 / elapsed);
         }
     }
 
+    /**
+     * Returns the time spent waiting for the limiter, in milliseconds.
+     */
     public long getTotalSleepTime() {
+        return totalSleepTime / 1000000;
+    }
+
+    /**
+     * Returns the time spent waiting for the limiter, in nanoseconds.
+     */
+    public long getTotalSleepNanos() {
         return totalSleepTime;
     }
 
     @Override
     public String toString() {
-        return "ThrottledInputStream{" + "bytesRead=" + bytesRead + ", maxBytesPerSec=" + maxBytesPerSec
-                + ", bytesPerSec=" + getBytesPerSec() + ", totalSleepTimeInSeconds=" + totalSleepTime / 1000 + '}';
+        return "ThrottledInputStream{" + "bytesRead=" + bytesRead + ", limiter=" + limiter
+                + ", bytesPerSec=" + getBytesPerSec() + ", totalSleepTimeInSeconds=" + getTotalSleepTime() / 1000 + '}';
     }
-}
\ No newline at end of file
+}